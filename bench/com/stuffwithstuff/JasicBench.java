@@ -0,0 +1,247 @@
+package com.stuffwithstuff;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.function.Consumer;
+
+import com.stuffwithstuff.Jasic.Engine;
+import com.stuffwithstuff.Jasic.Program;
+
+/**
+ * A small benchmark harness for Jasic. It times the lexer, the parser, and
+ * whole programs on each engine, using sample/mandel.jas and a few synthetic
+ * scripts that each stress one thing: tight loops, string concatenation,
+ * deeply nested expressions, and lots of labels.
+ * 
+ * Like any JVM benchmark, each one is run for a while first so that HotSpot
+ * has compiled it, and then timed over several rounds. The result is the
+ * average time for one operation, along with the fastest and slowest rounds
+ * so you can see how noisy it was. Compare runs on the same machine with
+ * nothing else going on.
+ * 
+ * Build and run it from the main Jasic directory:
+ * 
+ *     javac -d out com/stuffwithstuff/Jasic.java \
+ *         bench/com/stuffwithstuff/JasicBench.java
+ *     java -cp out com.stuffwithstuff.JasicBench [<filter>]
+ * 
+ * Only benchmarks whose names contain the filter are run.
+ */
+public class JasicBench {
+    public static void main(String[] args) throws IOException {
+        String filter = (args.length > 0) ? args[0] : "";
+        
+        final String mandel = new String(Files.readAllBytes(
+            Paths.get("sample/mandel.jas")), StandardCharsets.UTF_8);
+        final String counting = counting(1000000);
+        final String strings = strings(1000);
+        final String deep = deep(500);
+        final String labels = labels(2000);
+        
+        List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+        benchmarks.add(new Benchmark("tokenize mandel") {
+            Object run() { return Jasic.tokenize(mandel); }
+        });
+        benchmarks.add(new Benchmark("tokenize deep") {
+            Object run() { return Jasic.tokenize(deep); }
+        });
+        benchmarks.add(new Benchmark("parse mandel") {
+            Object run() { return Program.parse(mandel); }
+        });
+        benchmarks.add(new Benchmark("parse deep") {
+            Object run() { return Program.parse(deep); }
+        });
+        benchmarks.add(new Benchmark("parse labels") {
+            Object run() { return Program.parse(labels); }
+        });
+        
+        for (Engine engine : Engine.values()) {
+            String suffix = " " + engine.toString().toLowerCase();
+            benchmarks.add(new Interpret("interpret mandel" + suffix,
+                                         mandel, engine));
+            benchmarks.add(new Run("run mandel" + suffix, mandel, engine));
+            benchmarks.add(new Run("run counting" + suffix, counting,
+                                   engine));
+            benchmarks.add(new Run("run strings" + suffix, strings, engine));
+            benchmarks.add(new Run("run deep" + suffix, deep, engine));
+            benchmarks.add(new Run("run labels" + suffix, labels, engine));
+        }
+        
+        System.out.println(String.format("%-24s %14s %14s %14s",
+            "Benchmark", "ns/op", "min", "max"));
+        for (Benchmark benchmark : benchmarks) {
+            if (benchmark.name.contains(filter)) benchmark.measure();
+        }
+        
+        // Make sure the JIT can't prove the results are unused.
+        if (sink == 42) System.out.println(sink);
+    }
+    
+    // Synthetic scripts -------------------------------------------------------
+    
+    /**
+     * A loop that just counts.
+     */
+    private static String counting(int count) {
+        return "i = 0\n" +
+               "loop: i = i + 1\n" +
+               "if i < " + count + " then loop\n";
+    }
+    
+    /**
+     * A loop that builds up a string one piece at a time.
+     */
+    private static String strings(int count) {
+        return "i = 0\n" +
+               "s = \"\"\n" +
+               "loop: s = s + \"x\"\n" +
+               "i = i + 1\n" +
+               "if i < " + count + " then loop\n" +
+               "print s\n";
+    }
+    
+    /**
+     * A single expression with the given number of nested parentheses.
+     */
+    private static String deep(int depth) {
+        StringBuilder builder = new StringBuilder("a = 1\nprint ");
+        for (int i = 0; i < depth; i++) builder.append("(a + ");
+        builder.append("1");
+        for (int i = 0; i < depth; i++) builder.append(")");
+        return builder.append("\n").toString();
+    }
+    
+    /**
+     * A chain of labels that each jump to the next.
+     */
+    private static String labels(int count) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            builder.append("label").append(i).append(": ");
+            builder.append("goto label").append(i + 1).append("\n");
+        }
+        return builder.append("label").append(count).append(":\n")
+                      .toString();
+    }
+    
+    // Harness -----------------------------------------------------------------
+    
+    /**
+     * Base class for a single benchmark. Subclasses implement run() to do one
+     * operation and return its result.
+     */
+    private static abstract class Benchmark {
+        public Benchmark(String name) {
+            this.name = name;
+        }
+        
+        abstract Object run();
+        
+        /**
+         * Warms up, then times the benchmark and prints the results.
+         */
+        public void measure() {
+            // Warm up.
+            time(WARMUP_NANOS);
+            
+            double total = 0;
+            double min = Double.MAX_VALUE;
+            double max = 0;
+            for (int i = 0; i < ROUNDS; i++) {
+                double perOp = time(ROUND_NANOS);
+                total += perOp;
+                min = Math.min(min, perOp);
+                max = Math.max(max, perOp);
+            }
+            
+            System.out.println(String.format("%-24s %14.1f %14.1f %14.1f",
+                name, total / ROUNDS, min, max));
+        }
+        
+        /**
+         * Runs the benchmark over and over for at least the given time.
+         * 
+         * @return The average time for one run in nanoseconds.
+         */
+        private double time(long nanos) {
+            long start = System.nanoTime();
+            long end = start + nanos;
+            long ops = 0;
+            long now;
+            do {
+                sink += System.identityHashCode(run());
+                ops++;
+                now = System.nanoTime();
+            } while (now < end);
+            return (double)(now - start) / ops;
+        }
+        
+        public final String name;
+    }
+    
+    /**
+     * Runs an already-parsed program in a fresh context, with the output
+     * thrown away.
+     */
+    private static class Run extends Benchmark {
+        public Run(String name, String source, Engine engine) {
+            super(name);
+            this.program = Program.parse(source);
+            this.engine = engine;
+        }
+        
+        Object run() {
+            Jasic.Context context = program.newContext();
+            context.setOutput(DISCARD);
+            context.run(engine);
+            return context;
+        }
+        
+        private final Program program;
+        private final Engine engine;
+    }
+    
+    /**
+     * Parses and runs a script from scratch each time, the way the command
+     * line does.
+     */
+    private static class Interpret extends Benchmark {
+        public Interpret(String name, String source, Engine engine) {
+            super(name);
+            this.source = source;
+            this.engine = engine;
+        }
+        
+        Object run() {
+            Jasic jasic = new Jasic();
+            jasic.setEngine(engine);
+            jasic.setOutput(DISCARD);
+            jasic.interpret(source);
+            return jasic;
+        }
+        
+        private final String source;
+        private final Engine engine;
+    }
+    
+    /**
+     * Throws away output, so the benchmarks time the interpreter and not the
+     * console.
+     */
+    private static class Discard implements Consumer<String> {
+        public void accept(String text) {
+            sink += text.length();
+        }
+    }
+    
+    private static final Consumer<String> DISCARD = new Discard();
+    
+    private static final long WARMUP_NANOS = 2000000000L;
+    private static final long ROUND_NANOS = 1000000000L;
+    private static final int ROUNDS = 5;
+    
+    private static int sink;
+}
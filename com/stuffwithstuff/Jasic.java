@@ -1,12 +1,54 @@
 package com.stuffwithstuff;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
-import java.io.FileInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
 import java.io.Reader;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodHandles.Lookup;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 /**
  * This defines a single class that contains an entire interpreter for a
@@ -65,6 +107,32 @@ import java.util.*;
  * 
  *     if a < b then dosomething
  * 
+ * for <name> = <expression> to <expression> [step <expression>]
+ * next [<name>]
+ *     Runs the statements between "for" and "next" once for each number from
+ *     the first expression up to the second, counting by the step (1 if it's
+ *     left out). The limit and step are only evaluated once, when the loop
+ *     starts. If the first number is already past the limit, the statements
+ *     are skipped entirely. Loops can be nested, and the name after "next" is
+ *     optional, but if it's given it must match the "for".
+ * 
+ *     for i = 1 to 10
+ *     print i
+ *     next i
+ * 
+ * dim <name>(<expression>)
+ *     Creates an array with the given name. The elements are numbered from 0
+ *     up to and including the size, and start out as 0. Arrays have their own
+ *     names, separate from variables. Using "dim" on an array again clears it.
+ * 
+ *     dim scores(100)
+ * 
+ * <name>(<expression>) = <expression>
+ *     Evaluates the expression and stores the result in an element of an
+ *     array. The index is rounded down to a whole number.
+ * 
+ *     scores(i) = 42
+ * 
  * 
  * The following expressions are supported:
  * 
@@ -86,6 +154,9 @@ import java.util.*;
  *     A name in an expression simply returns the value of the variable with
  *     that name. If the variable was never set, it defaults to 0.
  * 
+ * <name>(<expression>)
+ *     Returns the value of an element of an array.
+ * 
  * All binary operators have the same precedence. Sorry, I had to cut corners
  * somewhere.
  * 
@@ -100,121 +171,705 @@ public class Jasic {
     /**
      * Runs the interpreter as a command-line app. Takes one argument: a path
      * to a script file to load and run. The script should contain one
-     * statement per line.
+     * statement per line. Before the path, "--engine=vm" can be passed to run
+     * the script on the bytecode virtual machine instead of walking the AST,
+     * or "--engine=jvm" to compile it to a JVM class.
+     * 
+     * Given more than one script, or a directory of them, or any number of
+     * "--input=" files, it runs in batch mode instead, which can't be
+     * profiled or checkpointed. See runBatch(). Given "--repl", it reads
+     * statements from the console instead. See Session. Given
+     * "--checkpoint=<file>", the script can be stopped and resumed. See
+     * runCheckpointed(). That always walks the tree, so it can't be combined
+     * with another engine or with profiling.
      * 
      * @param args Command-line arguments.
      */
     public static void main(String[] args) {
+        Engine engine = Engine.TREE;
+        Charset charset = StandardCharsets.UTF_8;
+        boolean useCache = false;
+        boolean profile = false;
+        String stacks = null;
+        boolean stats = false;
+        boolean repl = false;
+        String checkpoint = null;
+        int threads = Runtime.getRuntime().availableProcessors();
+        List<String> paths = new ArrayList<String>();
+        List<String> inputs = new ArrayList<String>();
+        for (String arg : args) {
+            if (arg.startsWith("--engine=")) {
+                engine = Engine.valueOf(
+                    arg.substring("--engine=".length()).toUpperCase());
+            } else if (arg.startsWith("--charset=")) {
+                charset = Charset.forName(
+                    arg.substring("--charset=".length()));
+            } else if (arg.equals("--cache")) {
+                useCache = true;
+            } else if (arg.equals("--stats")) {
+                stats = true;
+            } else if (arg.equals("--profile")) {
+                profile = true;
+            } else if (arg.startsWith("--stacks=")) {
+                profile = true;
+                stacks = arg.substring("--stacks=".length());
+            } else if (arg.startsWith("--input=")) {
+                inputs.add(arg.substring("--input=".length()));
+            } else if (arg.startsWith("--checkpoint=")) {
+                checkpoint = arg.substring("--checkpoint=".length());
+            } else if (arg.equals("--repl")) {
+                repl = true;
+            } else if (arg.startsWith("--threads=")) {
+                threads = Integer.parseInt(
+                    arg.substring("--threads=".length()));
+            } else {
+                paths.add(arg);
+            }
+        }
+        
+        if (repl) {
+            repl();
+            return;
+        }
+        
         // Just show the usage and quit if a script wasn't provided.
-        if (args.length != 1) {
-            System.out.println("Usage: jasic <script>");
+        if (paths.isEmpty()) {
+            System.out.println("Usage: jasic [--engine=tree|vm|jvm] " +
+                "[--charset=<name>] [--cache] [--stats]");
+            System.out.println("             [--profile] " +
+                "[--stacks=<file>] [--checkpoint=<file>] <script>");
+            System.out.println("       jasic --repl");
             System.out.println("Where <script> is a relative path to a .jas script to run.");
+            System.out.println("Scripts are read as UTF-8 unless a charset is given.");
+            System.out.println("--cache saves the parsed script next to it " +
+                "and reuses it while the script is unchanged.");
+            System.out.println("--profile prints the hottest statements " +
+                "and labels when the script ends.");
+            System.out.println("--stacks=<file> also writes the profile " +
+                "as collapsed stacks for a flame graph.");
+            System.out.println("--stats prints how many values came from " +
+                "the value cache.");
+            System.out.println("--checkpoint=<file> saves a snapshot there " +
+                "if the script is stopped, and");
+            System.out.println("resumes from it on the next run. " +
+                "Checkpointed scripts always walk the tree,");
+            System.out.println("so it can't be used with --engine=vm, " +
+                "--engine=jvm, --profile or --stacks.");
+            System.out.println("--repl reads statements from the console " +
+                "and runs them as they're entered.");
+            System.out.println();
+            System.out.println("Batch mode: jasic [--engine=tree|vm|jvm] " +
+                "[--charset=<name>] [--cache] [--stats]");
+            System.out.println("                  [--threads=<n>] " +
+                "[--input=<file>...] <script>...");
+            System.out.println("Runs every script (or every .jas script " +
+                "in a directory) once for each");
+            System.out.println("input file, in parallel, and prints each " +
+                "run's output in order. --profile,");
+            System.out.println("--stacks and --checkpoint can only be " +
+                "used with a single script.");
+            return;
+        }
+        
+        // A checkpointed script runs in slices, which only the tree-walker can
+        // stop and resume, and the profiler doesn't know about.
+        if (checkpoint != null && (engine != Engine.TREE || profile)) {
+            System.err.println("--checkpoint can't be used with " +
+                "--engine=vm, --engine=jvm, --profile or --stacks.");
+            System.exit(1);
+        }
+        
+        setCountValues(stats);
+        
+        if (paths.size() > 1 || !inputs.isEmpty() ||
+            Files.isDirectory(Paths.get(paths.get(0)))) {
+            // A profile or snapshot is of a single run.
+            if (profile || checkpoint != null) {
+                System.err.println("--profile, --stacks and --checkpoint " +
+                    "can't be used in batch mode.");
+                System.exit(1);
+            }
+            
+            try {
+                boolean passed = runBatch(expand(paths, ".jas"),
+                    expand(inputs, ""), engine, charset, useCache, threads);
+                if (stats) printValueStats();
+                if (!passed) System.exit(1);
+            } catch (IOException ex) {
+                System.err.println("Couldn't read batch: " + ex);
+                System.exit(1);
+            }
             return;
         }
         
-        // Read the file.
-        String contents = readFile(args[0]);
+        // Run the file.
+        String path = paths.get(0);
+        try {
+            Program program = Program.load(path, charset, useCache);
+            Context context = program.newContext();
+            Profiler profiler = null;
+            if (profile) {
+                profiler = new Profiler(program);
+                context.setProfiler(profiler);
+            }
+            
+            try {
+                if (checkpoint != null) {
+                    runCheckpointed(context, checkpoint);
+                } else {
+                    context.run(engine);
+                }
+            } finally {
+                if (stats) printValueStats();
+                if (profiler != null) profiler.report(System.err);
+                if (stacks != null) {
+                    Writer writer = Files.newBufferedWriter(Paths.get(stacks),
+                        StandardCharsets.UTF_8);
+                    try {
+                        profiler.writeStacks(writer,
+                            Paths.get(path).getFileName().toString());
+                    } finally {
+                        writer.close();
+                    }
+                }
+            }
+        } catch (IOException ex) {
+            System.err.println("Couldn't read " + path + ": " + ex);
+            System.exit(1);
+        } catch (UncheckedIOException ex) {
+            System.err.println("Couldn't read " + path + ": " + ex.getCause());
+            System.exit(1);
+        }
+    }
+    
+    /**
+     * Runs a script so that it can be stopped and carried on later. If there's
+     * a snapshot at the given path, the run picks up from there. If the JVM is
+     * shut down while the script is running, like by Ctrl-C or a deploy, a
+     * snapshot is saved there before it exits. When the script ends, the
+     * snapshot is deleted.
+     * 
+     * The script runs in slices, like on a Scheduler, and checks whether it
+     * needs to stop between them. HACK: That means if it's waiting for console
+     * input when the JVM shuts down, it never gets to stop, and no snapshot is
+     * saved.
+     * 
+     * @param context The context to run the script in.
+     * @param path    Path to the snapshot file.
+     */
+    private static void runCheckpointed(Context context, String path)
+            throws IOException {
+        Path snapshot = Paths.get(path);
+        if (Files.exists(snapshot)) {
+            try {
+                readSnapshot(snapshot, context);
+            } catch (IOException ex) {
+                System.err.println("Couldn't resume from " + path + ": " +
+                    ex.getMessage());
+                System.exit(1);
+            }
+        }
+        
+        ShutdownSaver saver = new ShutdownSaver();
+        Runtime.getRuntime().addShutdownHook(saver);
+        try {
+            while (!context.interpretSlice(CHECKPOINT_SLICE)) {
+                if (saver.stopping) {
+                    context.flushOutput();
+                    writeSnapshot(snapshot, context);
+                    System.err.println("Saved snapshot to " + path + ".");
+                    return;
+                }
+            }
+            Files.deleteIfExists(snapshot);
+        } finally {
+            context.flushOutput();
+            saver.stopped.countDown();
+        }
+        
+        try {
+            Runtime.getRuntime().removeShutdownHook(saver);
+        } catch (IllegalStateException ex) {
+            // The JVM is already shutting down, so it doesn't matter.
+        }
+    }
+    
+    /**
+     * A shutdown hook that asks a checkpointed run to stop, and gives it a few
+     * seconds to save its snapshot.
+     */
+    private static class ShutdownSaver extends Thread {
+        public void run() {
+            stopping = true;
+            try {
+                stopped.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException ex) {
+                // Just exit.
+            }
+        }
         
-        // Run it.
-        Jasic jasic = new Jasic();
-        jasic.interpret(contents);
+        private volatile boolean stopping;
+        private final CountDownLatch stopped = new CountDownLatch(1);
     }
     
-    // Tokenizing (lexing) -----------------------------------------------------
+    /** How many statements a checkpointed run does between checks. */
+    private static final int CHECKPOINT_SLICE = 100000;
     
     /**
-     * This function takes a script as a string of characters and chunks it into
-     * a sequence of tokens. Each token is a meaningful unit of program, like a
-     * variable name, a number, a string, or an operator.
+     * Prints how well the value cache did to stderr.
+     */
+    private static void printValueStats() {
+        long hits = getValueCacheHits();
+        long total = hits + getValueCacheMisses();
+        System.err.println(String.format(
+            "Values: %d created, %d from cache (%.1f%%)", total, hits,
+            (total == 0) ? 0.0 : 100.0 * hits / total));
+    }
+    
+    // Batch mode --------------------------------------------------------------
+    
+    // Starting a JVM for every script wastes most of the time on startup, and
+    // runs one script at a time on one core. Batch mode loads each script
+    // once and then runs every job (one script with one input file) on a
+    // work-stealing thread pool. Each job gets its own context, so the jobs
+    // don't share any variables, and its output is collected in memory so
+    // that it can be printed in order once the job is done.
+    
+    /**
+     * Runs each script once for each input file, or once with no input if
+     * there are no input files. Prints the output of each job, in order,
+     * after a header line naming it.
+     * 
+     * @param  scripts  Paths to the scripts to run.
+     * @param  inputs   Paths to the input files to run each script with.
+     * @param  engine   The execution engine to use.
+     * @param  charset  The encoding of the scripts and inputs.
+     * @param  useCache Whether to read and write the parse cache.
+     * @param  threads  How many scripts to run at the same time.
+     * @return          True if every job ran without an error.
+     * @throws          IOException
      */
-    private static List<Token> tokenize(String source) {
-        List<Token> tokens = new ArrayList<Token>();
-        
-        String token = "";
-        TokenizeState state = TokenizeState.DEFAULT;
-        
-        // Many tokens are a single character, like operators and ().
-        String charTokens = "\n=+-*/<>()";
-        TokenType[] tokenTypes = { TokenType.LINE, TokenType.EQUALS,
-            TokenType.OPERATOR, TokenType.OPERATOR, TokenType.OPERATOR,
-            TokenType.OPERATOR, TokenType.OPERATOR, TokenType.OPERATOR,
-            TokenType.LEFT_PAREN, TokenType.RIGHT_PAREN
-        };
-        
-        // Scan through the code one character at a time, building up the list
-        // of tokens.
-        for (int i = 0; i < source.length(); i++) {
-            char c = source.charAt(i);
-            switch (state) {
-            case DEFAULT:
-                if (charTokens.indexOf(c) != -1) {
-                    tokens.add(new Token(Character.toString(c),
-                        tokenTypes[charTokens.indexOf(c)]));
-                } else if (Character.isLetter(c)) {
-                    token += c;
-                    state = TokenizeState.WORD;
-                } else if (Character.isDigit(c)) {
-                    token += c;
-                    state = TokenizeState.NUMBER;
-                } else if (c == '"') {
-                    state = TokenizeState.STRING;
-                } else if (c == '\'') {
-                    state = TokenizeState.COMMENT;
+    private static boolean runBatch(List<String> scripts, List<String> inputs,
+            Engine engine, Charset charset, boolean useCache, int threads)
+            throws IOException {
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            // Parse every script first, so that each one is only parsed once
+            // no matter how many inputs it's run with.
+            List<Future<Program>> programs = new ArrayList<Future<Program>>();
+            for (String script : scripts) {
+                programs.add(pool.submit(
+                    new BatchLoad(script, charset, useCache)));
+            }
+            
+            List<BatchJob> jobs = new ArrayList<BatchJob>();
+            List<Future<String>> results = new ArrayList<Future<String>>();
+            for (int i = 0; i < scripts.size(); i++) {
+                Program program;
+                String error = null;
+                try {
+                    program = programs.get(i).get();
+                } catch (ExecutionException ex) {
+                    // The pool wraps the exception (sometimes more than
+                    // once), so dig the real one out.
+                    Throwable cause = ex.getCause();
+                    while (cause.getCause() != null) cause = cause.getCause();
+                    
+                    program = null;
+                    if (cause instanceof Error) {
+                        error = cause.getMessage();
+                    } else {
+                        error = "Couldn't read " + scripts.get(i) + ": " +
+                            cause;
+                    }
                 }
-                break;
                 
-            case WORD:
-                if (Character.isLetterOrDigit(c)) {
-                    token += c;
-                } else if (c == ':') {
-                    tokens.add(new Token(token, TokenType.LABEL));
-                    token = "";
-                    state = TokenizeState.DEFAULT;
-                } else {
-                    tokens.add(new Token(token, TokenType.WORD));
-                    token = "";
-                    state = TokenizeState.DEFAULT;
-                    i--; // Reprocess this character in the default state.
+                if (inputs.isEmpty()) {
+                    jobs.add(new BatchJob(scripts.get(i), program, error,
+                        null, charset, engine));
                 }
-                break;
                 
-            case NUMBER:
-                // HACK: Negative numbers and floating points aren't supported.
-                // To get a negative number, just do 0 - <your number>.
-                // To get a floating point, divide.
-                if (Character.isDigit(c)) {
-                    token += c;
-                } else {
-                    tokens.add(new Token(token, TokenType.NUMBER));
-                    token = "";
-                    state = TokenizeState.DEFAULT;
-                    i--; // Reprocess this character in the default state.
+                for (String input : inputs) {
+                    jobs.add(new BatchJob(scripts.get(i), program, error,
+                        input, charset, engine));
                 }
-                break;
-                
-            case STRING:
-                if (c == '"') {
-                    tokens.add(new Token(token, TokenType.STRING));
-                    token = "";
-                    state = TokenizeState.DEFAULT;
-                } else {
-                    token += c;
+            }
+            
+            for (BatchJob job : jobs) results.add(pool.submit(job));
+            
+            boolean passed = true;
+            for (int i = 0; i < jobs.size(); i++) {
+                String output = results.get(i).get();
+                System.out.println("--- " + jobs.get(i).name() + " ---");
+                System.out.print(output);
+                System.out.flush();
+                if (jobs.get(i).failed) passed = false;
+            }
+            return passed;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException ex) {
+            // The jobs catch their own errors, so this shouldn't happen.
+            throw new Error(ex.getCause());
+        } finally {
+            pool.shutdown();
+        }
+    }
+    
+    /**
+     * Expands any directories in a list of paths to the files in them that
+     * end with the given extension, sorted by name.
+     */
+    private static List<String> expand(List<String> paths, String extension)
+            throws IOException {
+        List<String> files = new ArrayList<String>();
+        for (String path : paths) {
+            Path file = Paths.get(path);
+            if (!Files.isDirectory(file)) {
+                files.add(path);
+                continue;
+            }
+            
+            List<String> children = new ArrayList<String>();
+            DirectoryStream<Path> directory = Files.newDirectoryStream(file);
+            try {
+                for (Path child : directory) {
+                    if (Files.isRegularFile(child) &&
+                        child.toString().endsWith(extension)) {
+                        children.add(child.toString());
+                    }
                 }
-                break;
+            } finally {
+                directory.close();
+            }
+            Collections.sort(children);
+            files.addAll(children);
+        }
+        return files;
+    }
+    
+    /**
+     * Loads one of the scripts in a batch.
+     */
+    private static class BatchLoad implements Callable<Program> {
+        public BatchLoad(String path, Charset charset, boolean useCache) {
+            this.path = path;
+            this.charset = charset;
+            this.useCache = useCache;
+        }
+        
+        public Program call() throws IOException {
+            return Program.load(path, charset, useCache);
+        }
+        
+        private final String path;
+        private final Charset charset;
+        private final boolean useCache;
+    }
+    
+    /**
+     * Runs a script with one input file, and returns everything it printed.
+     * If anything goes wrong, the error is added to the end of the output.
+     */
+    private static class BatchJob implements Callable<String> {
+        public BatchJob(String script, Program program, String error,
+                        String input, Charset charset, Engine engine) {
+            this.script = script;
+            this.program = program;
+            this.error = error;
+            this.input = input;
+            this.charset = charset;
+            this.engine = engine;
+        }
+        
+        public String name() {
+            if (input == null) return script;
+            return script + " < " + input;
+        }
+        
+        public String call() {
+            StringBuilder output = new StringBuilder();
+            try {
+                if (error != null) throw new Error(error);
                 
-            case COMMENT:
-                if (c == '\n') {
-                    state = TokenizeState.DEFAULT;
+                List<String> lines = Collections.<String>emptyList();
+                if (input != null) {
+                    lines = Files.readAllLines(Paths.get(input), charset);
                 }
-                break;
+                
+                Context context = program.newContext();
+                context.setInput(new LineInput(lines));
+                context.setOutput(new BufferOutput(output));
+                context.run(engine);
+            } catch (IOException ex) {
+                output.append("Couldn't read " + input + ": " + ex)
+                      .append(LINE_SEPARATOR);
+                failed = true;
+            } catch (RuntimeException ex) {
+                output.append(ex).append(LINE_SEPARATOR);
+                failed = true;
+            } catch (Error ex) {
+                output.append(ex.getMessage()).append(LINE_SEPARATOR);
+                failed = true;
             }
+            return output.toString();
+        }
+        
+        private final String script;
+        private final Program program;
+        private final String error;
+        private final String input;
+        private final Charset charset;
+        private final Engine engine;
+        private boolean failed;
+    }
+    
+    /**
+     * Supplies input from a list of lines.
+     */
+    private static class LineInput implements Supplier<String> {
+        public LineInput(List<String> lines) {
+            this.lines = lines.iterator();
+        }
+        
+        public String get() {
+            return lines.hasNext() ? lines.next() : null;
+        }
+        
+        private final Iterator<String> lines;
+    }
+    
+    /**
+     * Collects output in memory.
+     */
+    private static class BufferOutput implements Consumer<String> {
+        public BufferOutput(StringBuilder buffer) {
+            this.buffer = buffer;
+        }
+        
+        public void accept(String text) {
+            buffer.append(text);
         }
         
-        // HACK: Silently ignore any in-progress token when we run out of
-        // characters. This means that, for example, if a script has a string
-        // that's missing the closing ", it will just ditch it.
+        private final StringBuilder buffer;
+    }
+    
+    // Tokenizing (lexing) -----------------------------------------------------
+    
+    /**
+     * This function takes a script as a string of characters and chunks it into
+     * a sequence of tokens. Each token is a meaningful unit of program, like a
+     * variable name, a number, a string, or an operator.
+     * 
+     * The parser doesn't use this, since it pulls tokens from the lexer as it
+     * goes. It's package-private so the benchmarks can time the lexer alone.
+     */
+    static Tokens tokenize(String source) {
+        Lexer lexer = new Lexer(new StringReader(source));
+        Tokens tokens = new Tokens(null);
+        while (lexer.scan(tokens));
         return tokens;
     }
+    
+    /**
+     * This is the tokenizer itself. It pulls characters from a Reader into a
+     * fixed-size buffer, and only produces tokens when the parser asks for
+     * them. That way, even a huge script never has to be in memory all at
+     * once, either as text or as tokens.
+     * 
+     * Instead of building up each token a character at a time, the lexer just
+     * remembers where the current token started in the buffer and slices it
+     * out once it reaches the end. When the buffer runs dry, the part of the
+     * current token scanned so far is moved to the front before refilling.
+     */
+    private static class Lexer {
+        public Lexer(Reader reader) {
+            this.reader = reader;
+        }
+        
+        /**
+         * Scans until at least one more token has been added, or the end of
+         * the script is reached.
+         * 
+         * @param  tokens The token buffer to add to.
+         * @return        False if there are no more tokens.
+         */
+        public boolean scan(Tokens tokens) {
+            int before = tokens.end();
+            while (tokens.end() == before) {
+                if (position == limit && !fill()) return false;
+                
+                char c = buffer[position];
+                switch (state) {
+                case DEFAULT:
+                    int charToken = CHAR_TOKENS.indexOf(c);
+                    if (charToken != -1) {
+                        tokens.add(CHAR_TOKEN_TYPES[charToken],
+                            CHAR_TOKEN_TEXTS[charToken], line, column());
+                        if (c == '\n') newLine();
+                        position++;
+                        break;
+                    }
+                    
+                    start = position;
+                    startLine = line;
+                    startColumn = column();
+                    if (Character.isLetter(c)) {
+                        state = TokenizeState.WORD;
+                    } else if (Character.isDigit(c)) {
+                        state = TokenizeState.NUMBER;
+                    } else if (c == '"') {
+                        start++; // Don't include the quote.
+                        state = TokenizeState.STRING;
+                    } else if (c == '\'') {
+                        state = TokenizeState.COMMENT;
+                    }
+                    position++;
+                    break;
+                    
+                case WORD:
+                    if (Character.isLetterOrDigit(c)) {
+                        position++;
+                    } else if (c == ':') {
+                        tokens.add(TokenType.LABEL, name(), startLine,
+                            startColumn);
+                        state = TokenizeState.DEFAULT;
+                        position++;
+                    } else {
+                        // Don't consume the character, so that it gets
+                        // processed again in the default state.
+                        tokens.add(TokenType.WORD, name(), startLine,
+                            startColumn);
+                        state = TokenizeState.DEFAULT;
+                    }
+                    break;
+                    
+                case NUMBER:
+                    // HACK: Negative numbers and floating points aren't
+                    // supported. To get a negative number, just do
+                    // 0 - <your number>. To get a floating point, divide.
+                    if (Character.isDigit(c)) {
+                        position++;
+                    } else {
+                        tokens.add(TokenType.NUMBER,
+                            new String(buffer, start, position - start),
+                            startLine, startColumn);
+                        state = TokenizeState.DEFAULT;
+                    }
+                    break;
+                    
+                case STRING:
+                    if (c == '"') {
+                        tokens.add(TokenType.STRING,
+                            new String(buffer, start, position - start),
+                            startLine, startColumn);
+                        state = TokenizeState.DEFAULT;
+                    } else if (c == '\n') {
+                        newLine();
+                    }
+                    position++;
+                    break;
+                    
+                case COMMENT:
+                    if (c == '\n') {
+                        newLine();
+                        state = TokenizeState.DEFAULT;
+                    }
+                    position++;
+                    break;
+                }
+            }
+            
+            return true;
+        }
+        
+        /**
+         * Reads more characters into the buffer.
+         * 
+         * @return False if there are no more characters.
+         */
+        private boolean fill() {
+            // Keep the part of the token we're in the middle of.
+            int keep = position;
+            if (state == TokenizeState.WORD ||
+                state == TokenizeState.NUMBER ||
+                state == TokenizeState.STRING) {
+                keep = start;
+            }
+            
+            System.arraycopy(buffer, keep, buffer, 0, limit - keep);
+            limit -= keep;
+            position -= keep;
+            start -= keep;
+            lineStart -= keep;
+            
+            // If a single token fills the whole buffer, make room.
+            if (limit == buffer.length) {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+            
+            try {
+                int read = reader.read(buffer, limit, buffer.length - limit);
+                if (read > 0) {
+                    limit += read;
+                    return true;
+                }
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+            
+            // HACK: The parser expects every statement to end in a newline,
+            // even the very last one, so we'll just tack one on here in case
+            // the script doesn't have one.
+            if (atEnd) return false;
+            atEnd = true;
+            buffer[limit++] = '\n';
+            return true;
+        }
+        
+        private String name() {
+            return symbols.intern(buffer, start, position - start);
+        }
+        
+        private int column() {
+            return position - lineStart + 1;
+        }
+        
+        private void newLine() {
+            line++;
+            lineStart = position + 1;
+        }
+        
+        private final Reader reader;
+        private final Symbols symbols = new Symbols();
+        private char[] buffer = new char[8192];
+        private int position;
+        private int limit;
+        private boolean atEnd;
+        
+        private TokenizeState state = TokenizeState.DEFAULT;
+        private int start;
+        
+        // Track where we are so that errors can point at the right place.
+        private int line = 1;
+        private int lineStart;
+        private int startLine;
+        private int startColumn;
+    }
+    
+    // Many tokens are a single character, like operators and (). Their text is
+    // always the same, so we create the strings once up front.
+    private static final String CHAR_TOKENS = "\n=+-*/<>()";
+    private static final TokenType[] CHAR_TOKEN_TYPES = {
+        TokenType.LINE, TokenType.EQUALS,
+        TokenType.OPERATOR, TokenType.OPERATOR, TokenType.OPERATOR,
+        TokenType.OPERATOR, TokenType.OPERATOR, TokenType.OPERATOR,
+        TokenType.LEFT_PAREN, TokenType.RIGHT_PAREN
+    };
+    private static final String[] CHAR_TOKEN_TEXTS = {
+        "\n", "=", "+", "-", "*", "/", "<", ">", "(", ")"
+    };
 
     // Token data --------------------------------------------------------------
 
@@ -233,17 +888,161 @@ public class Jasic {
     }
     
     /**
-     * This is a single meaningful chunk of code. It is created by the tokenizer
-     * and consumed by the parser.
+     * This is the sequence of meaningful chunks of code created by the
+     * tokenizer and consumed by the parser. Instead of an object per token,
+     * it stores each field of the tokens in its own array (a "struct of
+     * arrays"). That's a lot less garbage for a big script, and keeps the
+     * types the parser looks at most packed together.
+     * 
+     * Tokens are numbered from the start of the script, but this only holds a
+     * window of them. When a token past the end of the window is asked for,
+     * it pulls more from the lexer, and the parser discards the ones it's done
+     * with as it goes.
+     */
+    private static class Tokens {
+        public Tokens(Lexer lexer) {
+            this.lexer = lexer;
+        }
+        
+        public void add(TokenType type, String text, int line, int column) {
+            if (count == types.length) {
+                int capacity = count * 2;
+                types = Arrays.copyOf(types, capacity);
+                texts = Arrays.copyOf(texts, capacity);
+                lines = Arrays.copyOf(lines, capacity);
+                columns = Arrays.copyOf(columns, capacity);
+            }
+            
+            types[count] = type;
+            texts[count] = text;
+            lines[count] = line;
+            columns[count] = column;
+            count++;
+        }
+        
+        /**
+         * Gets the index after the last token that has been scanned so far.
+         */
+        public int end() { return base + count; }
+        
+        /**
+         * Gets the type of the token at the given index. Reading past the end
+         * gives EOF.
+         */
+        public TokenType type(int index) {
+            if (!fill(index)) return TokenType.EOF;
+            return types[index - base];
+        }
+        
+        public String text(int index) {
+            if (!fill(index)) return "";
+            return texts[index - base];
+        }
+        
+        public int line(int index) {
+            fill(index);
+            if (count == 0) return 1;
+            return lines[Math.min(index - base, count - 1)];
+        }
+        
+        public int column(int index) {
+            fill(index);
+            if (count == 0) return 1;
+            return columns[Math.min(index - base, count - 1)];
+        }
+        
+        /**
+         * Forgets every token before the given index.
+         */
+        public void discard(int index) {
+            int discarded = Math.min(index - base, count);
+            if (discarded <= 0) return;
+            
+            count -= discarded;
+            System.arraycopy(types, discarded, types, 0, count);
+            System.arraycopy(texts, discarded, texts, 0, count);
+            System.arraycopy(lines, discarded, lines, 0, count);
+            System.arraycopy(columns, discarded, columns, 0, count);
+            Arrays.fill(texts, count, count + discarded, null);
+            base += discarded;
+        }
+        
+        /**
+         * Scans tokens until the given index has been reached, if possible.
+         * 
+         * @return True if the token at the index exists.
+         */
+        private boolean fill(int index) {
+            while (index >= base + count) {
+                if (lexer == null || !lexer.scan(this)) return false;
+            }
+            return true;
+        }
+        
+        private final Lexer lexer;
+        private int base;
+        private TokenType[] types = new TokenType[16];
+        private String[] texts = new String[16];
+        private int[] lines = new int[16];
+        private int[] columns = new int[16];
+        private int count;
+    }
+    
+    /**
+     * A table of interned names. A script uses the same handful of variable
+     * names and keywords over and over, so rather than creating a new string
+     * for each one, the tokenizer looks the characters up here and reuses the
+     * string it made the first time. Names are also String.intern()ed, so a
+     * keyword like "print" is the very same string the parser compares it to.
      */
-    private static class Token {
-        public Token(String text, TokenType type) {
-            this.text = text;
-            this.type = type;
+    private static class Symbols {
+        public String intern(char[] chars, int start, int length) {
+            int hash = 0;
+            for (int i = start; i < start + length; i++) {
+                hash = 31 * hash + chars[i];
+            }
+            
+            // Linear probe until we find it or an empty spot.
+            int mask = table.length - 1;
+            int index = hash & mask;
+            while (table[index] != null) {
+                if (matches(table[index], chars, start, length)) {
+                    return table[index];
+                }
+                index = (index + 1) & mask;
+            }
+            
+            String symbol = new String(chars, start, length).intern();
+            table[index] = symbol;
+            count++;
+            
+            // Keep the table at most half full.
+            if (count * 2 > table.length) {
+                String[] old = table;
+                table = new String[old.length * 2];
+                mask = table.length - 1;
+                for (String name : old) {
+                    if (name == null) continue;
+                    index = name.hashCode() & mask;
+                    while (table[index] != null) index = (index + 1) & mask;
+                    table[index] = name;
+                }
+            }
+            
+            return symbol;
+        }
+        
+        private static boolean matches(String symbol, char[] chars, int start,
+                                       int length) {
+            if (symbol.length() != length) return false;
+            for (int i = 0; i < length; i++) {
+                if (symbol.charAt(i) != chars[start + i]) return false;
+            }
+            return true;
         }
         
-        public final String text;
-        public final TokenType type;
+        private String[] table = new String[64];
+        private int count;
     }
     
     /**
@@ -273,8 +1072,8 @@ public class Jasic {
      * As a side-effect, this phase also stores off the line numbers for each
      * label in the program. It's a bit gross, but it works.
      */
-    private class Parser {
-        public Parser(List<Token> tokens) {
+    private static class Parser {
+        public Parser(Tokens tokens) {
             this.tokens = tokens;
             position = 0;
         }
@@ -292,35 +1091,79 @@ public class Jasic {
             List<Statement> statements = new ArrayList<Statement>();
             
             while (true) {
+                // We never look back more than two tokens, so anything before
+                // that can go.
+                tokens.discard(position - 2);
+                
                 // Ignore empty lines.
                 while (match(TokenType.LINE));
                 
                 if (match(TokenType.LABEL)) {
                     // Mark the index of the statement after the label.
-                    labels.put(last(1).text, statements.size());
+                    labels.put(last(1), statements.size());
                 } else if (match(TokenType.WORD, TokenType.EQUALS)) {
-                    String name = last(2).text;
+                    String name = last(2);
                     Expression value = expression();
                     statements.add(new AssignStatement(name, value));
                 } else if (match("print")) {
                     statements.add(new PrintStatement(expression()));
                 } else if (match("input")) {
                     statements.add(new InputStatement(
-                        consume(TokenType.WORD).text));
+                        consume(TokenType.WORD)));
                 } else if (match("goto")) {
                     statements.add(new GotoStatement(
-                        consume(TokenType.WORD).text));
+                        consume(TokenType.WORD)));
                 } else if (match("if")) {
                     Expression condition = expression();
                     consume("then");
-                    String label = consume(TokenType.WORD).text;
+                    String label = consume(TokenType.WORD);
                     statements.add(new IfThenStatement(condition, label));
+                } else if (match("for")) {
+                    String name = consume(TokenType.WORD);
+                    consume(TokenType.EQUALS);
+                    Expression start = expression();
+                    consume("to");
+                    Expression limit = expression();
+                    Expression step = NumberValue.valueOf(1);
+                    if (match("step")) step = expression();
+                    statements.add(new ForStatement(name, start, limit,
+                                                    step));
+                } else if (match("next")) {
+                    String name = null;
+                    if (get(0) == TokenType.WORD) {
+                        name = consume(TokenType.WORD);
+                    }
+                    statements.add(new NextStatement(name));
+                } else if (match("dim")) {
+                    String name = consume(TokenType.WORD);
+                    statements.add(new DimStatement(name, index()));
+                } else if (match(TokenType.WORD, TokenType.LEFT_PAREN)) {
+                    // This has to come after the keywords, since
+                    // "print (a)" looks just like an array element.
+                    String name = last(2);
+                    Expression index = expression();
+                    consume(TokenType.RIGHT_PAREN);
+                    consume(TokenType.EQUALS);
+                    statements.add(new ArrayAssignStatement(name, index,
+                                                            expression()));
                 } else break; // Unexpected token (likely EOF), so end.
             }
             
             return statements;
         }
         
+        /**
+         * Parses an array index or size: an expression in parentheses.
+         * 
+         * @return The parsed expression.
+         */
+        private Expression index() {
+            consume(TokenType.LEFT_PAREN);
+            Expression index = expression();
+            consume(TokenType.RIGHT_PAREN);
+            return index;
+        }
+        
         // The following functions each represent one grammatical part of the
         // language. If this parsed English, these functions would be named like
         // noun() and verb().
@@ -364,7 +1207,7 @@ public class Jasic {
             // Keep building operator expressions as long as we have operators.
             while (match(TokenType.OPERATOR) ||
                    match(TokenType.EQUALS)) {
-                char operator = last(1).text.charAt(0);
+                char operator = last(1).charAt(0);
                 Expression right = atomic();
                 expression = new OperatorExpression(expression, operator, right);
             }
@@ -381,12 +1224,17 @@ public class Jasic {
          */
         private Expression atomic() {
             if (match(TokenType.WORD)) {
-                // A word is a reference to a variable.
-                return new VariableExpression(last(1).text);
+                // A word followed by "(" is an element of an array. Otherwise
+                // it's a reference to a variable.
+                String name = last(1);
+                if (get(0) == TokenType.LEFT_PAREN) {
+                    return new ArrayExpression(name, index());
+                }
+                return new VariableExpression(name);
             } else if (match(TokenType.NUMBER)) {
-                return new NumberValue(Double.parseDouble(last(1).text));
+                return NumberValue.valueOf(parseNumber(last(1)));
             } else if (match(TokenType.STRING)) {
-                return new StringValue(last(1).text);
+                return StringValue.valueOf(last(1));
             } else if (match(TokenType.LEFT_PAREN)) {
                 // The contents of a parenthesized expression can be any
                 // expression. This lets us "restart" the precedence cascade
@@ -396,7 +1244,7 @@ public class Jasic {
                 consume(TokenType.RIGHT_PAREN);
                 return expression;
             }
-            throw new Error("Couldn't parse :(");
+            throw error("Couldn't parse :(");
         }
         
         // The following functions are the core low-level operations that the
@@ -412,8 +1260,8 @@ public class Jasic {
          * @return       True if tokens were consumed.
          */
         private boolean match(TokenType type1, TokenType type2) {
-            if (get(0).type != type1) return false;
-            if (get(1).type != type2) return false;
+            if (get(0) != type1) return false;
+            if (get(1) != type2) return false;
             position += 2;
             return true;
         }
@@ -425,7 +1273,7 @@ public class Jasic {
          * @return       True if the token was consumed.
          */
         private boolean match(TokenType type) {
-            if (get(0).type != type) return false;
+            if (get(0) != type) return false;
             position++;
             return true;
         }
@@ -437,8 +1285,8 @@ public class Jasic {
          * @return       True if the token was consumed.
          */
         private boolean match(String name) {
-            if (get(0).type != TokenType.WORD) return false;
-            if (!get(0).text.equals(name)) return false;
+            if (get(0) != TokenType.WORD) return false;
+            if (!tokens.text(position).equals(name)) return false;
             position++;
             return true;
         }
@@ -450,11 +1298,11 @@ public class Jasic {
          * an opening (.
          * 
          * @param  type  Expected type of the next token.
-         * @return       The consumed token.
+         * @return       The text of the consumed token.
          */
-        private Token consume(TokenType type) {
-            if (get(0).type != type) throw new Error("Expected " + type + ".");
-            return tokens.get(position++);
+        private String consume(TokenType type) {
+            if (get(0) != type) throw error("Expected " + type + ".");
+            return tokens.text(position++);
         }
         
         /**
@@ -462,10 +1310,10 @@ public class Jasic {
          * throws an exception.
          * 
          * @param  name  Expected name of the next word token.
-         * @return       The consumed token.
+         * @return       The text of the consumed token.
          */
-        private Token consume(String name) {
-            if (!match(name)) throw new Error("Expected " + name + ".");
+        private String consume(String name) {
+            if (!match(name)) throw error("Expected " + name + ".");
             return last(1);
         }
 
@@ -474,10 +1322,10 @@ public class Jasic {
          * be the token just consumed, last(2) the one before that, etc.
          * 
          * @param  offset How far back in the token stream to look.
-         * @return        The consumed token.
+         * @return        The text of the consumed token.
          */
-        private Token last(int offset) {
-            return tokens.get(position - offset);
+        private String last(int offset) {
+            return tokens.text(position - offset);
         }
         
         /**
@@ -485,16 +1333,25 @@ public class Jasic {
          * token to be consumed, get(1) the one after that, etc.
          * 
          * @param  offset How far forward in the token stream to look.
-         * @return        The yet-to-be-consumed token.
+         * @return        The type of the yet-to-be-consumed token.
          */
-        private Token get(int offset) {
-            if (position + offset >= tokens.size()) {
-                return new Token("", TokenType.EOF);
-            }
-            return tokens.get(position + offset);
+        private TokenType get(int offset) {
+            return tokens.type(position + offset);
+        }
+        
+        /**
+         * Creates an error for a problem at the next token, including where
+         * it is in the script.
+         * 
+         * @param  message What went wrong.
+         * @return         The error to throw.
+         */
+        private Error error(String message) {
+            return new Error("Line " + tokens.line(position) + ", column " +
+                tokens.column(position) + ": " + message);
         }
         
-        private final List<Token> tokens;
+        private final Tokens tokens;
         private int position;
     }
     
@@ -507,6 +1364,11 @@ public class Jasic {
     // HACK: Unlike most real compilers or interpreters, the logic to execute
     // the code is baked directly into these classes. Typically, it would be
     // separated out so that the AST us just a static data structure.
+    //
+    // The nodes don't hold any run state themselves. Everything that changes
+    // while a program runs (the variables, the current statement, the output
+    // buffer) lives in the Context that's passed in. That way one parsed
+    // program can be run by any number of threads at the same time.
 
     /**
      * Base interface for a Jasic statement. The different supported statement
@@ -517,8 +1379,10 @@ public class Jasic {
          * Statements implement this to actually perform whatever behavior the
          * statement causes. "print" statements will display text here, "goto"
          * statements will change the current statement, etc.
+         * 
+         * @param context The run the statement is executing in.
          */
-        void execute();
+        void execute(Context context);
     }
 
     /**
@@ -533,137 +1397,429 @@ public class Jasic {
          * Expression classes implement this to evaluate the expression and
          * return the value.
          * 
-         * @return The value of the calculated expression.
+         * @param  context The run the expression is evaluated in.
+         * @return         The value of the calculated expression.
+         */
+        Value evaluate(Context context);
+        
+        /**
+         * Evaluates the expression and converts the result to a number. This
+         * must always give the same answer as evaluate().toNumber(), but
+         * expressions that are known to produce numbers can do it without
+         * boxing the result in a NumberValue. Arithmetic is the hot path in
+         * most scripts, so this avoids creating a pile of garbage objects.
+         * 
+         * @param  context The run the expression is evaluated in.
+         * @return         The numeric value of the calculated expression.
          */
-        Value evaluate();
+        double evaluateNumber(Context context);
     }
     
     /**
      * A "print" statement evaluates an expression, converts the result to a
      * string, and displays it to the user.
      */
-    public class PrintStatement implements Statement {
+    public static class PrintStatement implements Statement {
         public PrintStatement(Expression expression) {
             this.expression = expression;
         }
         
-        public void execute() {
-            System.out.println(expression.evaluate().toString());
+        public void execute(Context context) {
+            if (numeric) {
+                context.printNumber(expression.evaluateNumber(context));
+            } else {
+                context.print(expression.evaluate(context));
+            }
         }
 
         private final Expression expression;
+        private boolean numeric;
     }
     
     /**
      * An "input" statement reads input from the user and stores it in a
      * variable.
      */
-    public class InputStatement implements Statement {
+    public static class InputStatement implements Statement {
         public InputStatement(String name) {
             this.name = name;
         }
         
-        public void execute() {
-            try {
-                String input = lineIn.readLine();
-                
-                // Store it as a number if possible, otherwise use a string.
-                try {
-                    double value = Double.parseDouble(input);
-                    variables.put(name, new NumberValue(value));
-                } catch (NumberFormatException e) {
-                    variables.put(name, new StringValue(input));
-                }
-            } catch (IOException e1) {
-                // HACK: Just ignore the problem.
+        public void execute(Context context) {
+            if (!context.inputReady()) {
+                // Nothing has been typed yet. Come back to this statement
+                // once something has.
+                context.currentStatement--;
+                return;
             }
+            
+            Value input = context.readInput();
+            if (input != null) context.variables[slot] = input;
         }
 
         private final String name;
+        private int slot;
     }
 
     /**
      * An assignment statement evaluates an expression and stores the result in
      * a variable.
      */
-    public class AssignStatement implements Statement {
+    public static class AssignStatement implements Statement {
         public AssignStatement(String name, Expression value) {
             this.name = name;
             this.value = value;
         }
         
-        public void execute() {
-            variables.put(name, value.evaluate());
+        public void execute(Context context) {
+            if (numeric) {
+                context.numbers[slot] = value.evaluateNumber(context);
+            } else {
+                context.variables[slot] = value.evaluate(context);
+            }
         }
 
         private final String name;
         private final Expression value;
+        private int slot;
+        private boolean numeric;
     }
     
     /**
      * A "goto" statement jumps execution to another place in the program.
      */
-    public class GotoStatement implements Statement {
+    public static class GotoStatement implements Statement {
         public GotoStatement(String label) {
             this.label = label;
         }
         
-        public void execute() {
-            if (labels.containsKey(label)) {
-                currentStatement = labels.get(label).intValue();
-            }
+        public void execute(Context context) {
+            context.currentStatement = target;
         }
 
         private final String label;
+        private int target;
     }
     
     /**
      * An if then statement jumps execution to another place in the program, but
      * only if an expression evaluates to something other than 0.
      */
-    public class IfThenStatement implements Statement {
+    public static class IfThenStatement implements Statement {
         public IfThenStatement(Expression condition, String label) {
             this.condition = condition;
             this.label = label;
         }
         
-        public void execute() {
-            if (labels.containsKey(label)) {
-                double value = condition.evaluate().toNumber();
-                if (value != 0) {
-                    currentStatement = labels.get(label).intValue();
-                }
+        public void execute(Context context) {
+            double value = condition.evaluateNumber(context);
+            if (value != 0) {
+                context.currentStatement = target;
             }
         }
 
         private final Expression condition;
         private final String label;
+        private int target;
+    }
+    
+    /**
+     * A "for" statement starts a counted loop. It sets the counter, and
+     * stashes the limit and step in hidden variables so that "next" doesn't
+     * have to evaluate them again. If the loop shouldn't run at all, it jumps
+     * straight past the matching "next".
+     */
+    public static class ForStatement implements Statement {
+        public ForStatement(String name, Expression start, Expression limit,
+                            Expression step) {
+            this.name = name;
+            this.start = start;
+            this.limit = limit;
+            this.step = step;
+        }
+        
+        public void execute(Context context) {
+            double value = start.evaluateNumber(context);
+            double limit = this.limit.evaluateNumber(context);
+            double step = this.step.evaluateNumber(context);
+            context.numbers[limitSlot] = limit;
+            context.numbers[stepSlot] = step;
+            
+            if (numeric) {
+                context.numbers[slot] = value;
+            } else {
+                context.variables[slot] = NumberValue.valueOf(value);
+            }
+            
+            if (!inRange(value, limit, step)) {
+                context.currentStatement = exit;
+            }
+        }
+        
+        private final String name;
+        private final Expression start;
+        private final Expression limit;
+        private final Expression step;
+        private int slot;
+        private int limitSlot;
+        private int stepSlot;
+        private int exit;
+        private boolean numeric;
+    }
+    
+    /**
+     * A "next" statement ends a counted loop. It steps the counter, and jumps
+     * straight back to the first statement of the loop's body if the counter
+     * hasn't passed the limit yet.
+     */
+    public static class NextStatement implements Statement {
+        public NextStatement(String name) {
+            this.name = name;
+        }
+        
+        public void execute(Context context) {
+            double[] numbers = context.numbers;
+            double step = numbers[stepSlot];
+            double value;
+            if (numeric) {
+                value = numbers[slot] += step;
+            } else {
+                // Something else in the loop may have stored a string in the
+                // counter, so take the slow path.
+                Value counter = context.variables[slot];
+                value = ((counter != null) ? counter.toNumber() : 0) + step;
+                context.variables[slot] = NumberValue.valueOf(value);
+            }
+            
+            if (inRange(value, numbers[limitSlot], step)) {
+                context.currentStatement = body;
+            }
+        }
+        
+        /** The name after "next", or null if there wasn't one. */
+        private final String name;
+        
+        /** The matching "for" statement. Set by link(). */
+        private ForStatement loop;
+        private int slot;
+        private int limitSlot;
+        private int stepSlot;
+        private int body;
+        private boolean numeric;
+    }
+    
+    /**
+     * Determines whether a loop counter is still within its limit. Counting
+     * down, that means it's at or above the limit.
+     */
+    private static boolean inRange(double value, double limit, double step) {
+        return (step >= 0) ? value <= limit : value >= limit;
+    }
+    
+    /**
+     * A "dim" statement creates a new array, replacing any array that already
+     * had that name.
+     */
+    public static class DimStatement implements Statement {
+        public DimStatement(String name, Expression size) {
+            this.name = name;
+            this.size = size;
+        }
+        
+        public void execute(Context context) {
+            double size = this.size.evaluateNumber(context);
+            if (!(size >= 0 && size < Integer.MAX_VALUE)) {
+                throw new Error("Bad size " + formatNumber(size) +
+                        " for array '" + name + "'.");
+            }
+            context.arrays[slot] = new ArrayData((int)size + 1);
+        }
+        
+        private final String name;
+        private final Expression size;
+        private int slot;
+    }
+    
+    /**
+     * An array assignment statement evaluates an expression and stores the
+     * result in an element of an array.
+     */
+    public static class ArrayAssignStatement implements Statement {
+        public ArrayAssignStatement(String name, Expression index,
+                                    Expression value) {
+            this.name = name;
+            this.index = index;
+            this.value = value;
+        }
+        
+        public void execute(Context context) {
+            ArrayData array = array(context, slot, name);
+            double position = index.evaluateNumber(context);
+            int element = toElement(position, name);
+            try {
+                if (numeric) {
+                    array.numbers[element] = value.evaluateNumber(context);
+                } else {
+                    array.set(element, value.evaluate(context));
+                }
+            } catch (ArrayIndexOutOfBoundsException ex) {
+                throw outOfBounds(name, position);
+            }
+        }
+        
+        private final String name;
+        private final Expression index;
+        private final Expression value;
+        private int slot;
+        private boolean numeric;
     }
     
     /**
      * A variable expression evaluates to the current value stored in that
      * variable.
      */
-    public class VariableExpression implements Expression {
+    public static class VariableExpression implements Expression {
         public VariableExpression(String name) {
             this.name = name;
         }
         
-        public Value evaluate() {
-            if (variables.containsKey(name)) {
-                return variables.get(name);
+        public Value evaluate(Context context) {
+            if (numeric) return NumberValue.valueOf(context.numbers[slot]);
+            
+            Value value = context.variables[slot];
+            if (value != null) return value;
+            return ZERO;
+        }
+        
+        public double evaluateNumber(Context context) {
+            if (numeric) return context.numbers[slot];
+            
+            Value value = context.variables[slot];
+            if (value != null) return value.toNumber();
+            return 0;
+        }
+        
+        private final String name;
+        private int slot;
+        private boolean numeric;
+    }
+    
+    /**
+     * An array expression evaluates to the current value of an element of an
+     * array.
+     */
+    public static class ArrayExpression implements Expression {
+        public ArrayExpression(String name, Expression index) {
+            this.name = name;
+            this.index = index;
+        }
+        
+        public Value evaluate(Context context) {
+            ArrayData array = array(context, slot, name);
+            double position = index.evaluateNumber(context);
+            int element = toElement(position, name);
+            try {
+                if (numeric) return NumberValue.valueOf(array.numbers[element]);
+                return array.get(element);
+            } catch (ArrayIndexOutOfBoundsException ex) {
+                throw outOfBounds(name, position);
+            }
+        }
+        
+        public double evaluateNumber(Context context) {
+            ArrayData array = array(context, slot, name);
+            double position = index.evaluateNumber(context);
+            int element = toElement(position, name);
+            try {
+                if (numeric) return array.numbers[element];
+                return array.get(element).toNumber();
+            } catch (ArrayIndexOutOfBoundsException ex) {
+                throw outOfBounds(name, position);
             }
-            return new NumberValue(0);
         }
         
         private final String name;
+        private final Expression index;
+        private int slot;
+        private boolean numeric;
+    }
+    
+    /**
+     * The elements of an array. Numbers are stored unboxed in a double[], the
+     * same way numeric variables are. Arrays that hold strings too get a
+     * String[] alongside that, where a non-null entry means the element is
+     * that string instead of the number.
+     * 
+     * HACK: Only the conversion from a number to an index is checked, in
+     * toElement(). The JVM already checks every array access against the
+     * length, and HotSpot is good at hoisting that check out of loops, so the
+     * nodes just catch the exception and turn it into a Jasic error. Checking
+     * it ourselves first would only add a second check the JIT can't always
+     * prove away.
+     */
+    private static class ArrayData {
+        public ArrayData(int length) {
+            numbers = new double[length];
+        }
+        
+        public Value get(int index) {
+            if (strings != null && strings[index] != null) {
+                return StringValue.valueOf(strings[index]);
+            }
+            return NumberValue.valueOf(numbers[index]);
+        }
+        
+        public void set(int index, Value value) {
+            if (value instanceof NumberValue) {
+                numbers[index] = value.toNumber();
+                if (strings != null) strings[index] = null;
+            } else {
+                // Check the index before creating the strings, so that a bad
+                // one doesn't leave a half-written element behind.
+                numbers[index] = 0;
+                if (strings == null) strings = new String[numbers.length];
+                strings[index] = value.toString();
+            }
+        }
+        
+        private final double[] numbers;
+        private String[] strings;
+    }
+    
+    /**
+     * Gets the array in the given slot, or reports an error if the script
+     * hasn't created it with "dim" yet.
+     */
+    private static ArrayData array(Context context, int slot, String name) {
+        ArrayData array = context.arrays[slot];
+        if (array == null) {
+            throw new Error("Array '" + name + "' has not been dimensioned.");
+        }
+        return array;
+    }
+    
+    /**
+     * Converts a number to an array index by rounding it down. Anything that
+     * can't be an index, like a negative number or NaN, is out of bounds.
+     */
+    private static int toElement(double index, String name) {
+        double element = Math.floor(index);
+        if (!(element >= 0 && element <= Integer.MAX_VALUE)) {
+            throw outOfBounds(name, index);
+        }
+        return (int)element;
+    }
+    
+    private static Error outOfBounds(String name, double index) {
+        return new Error("Index " + formatNumber(index) +
+                " is out of bounds for array '" + name + "'.");
     }
     
     /**
      * An operator expression evaluates two expressions and then performs some
      * arithmetic operation on the results.
      */
-    public class OperatorExpression implements Expression {
+    public static class OperatorExpression implements Expression {
         public OperatorExpression(Expression left, char operator,
                                   Expression right) {
             this.left = left;
@@ -671,217 +1827,4532 @@ public class Jasic {
             this.right = right;
         }
         
-        public Value evaluate() {
-            Value leftVal = left.evaluate();
-            Value rightVal = right.evaluate();
-            
+        public Value evaluate(Context context) {
+            Value value = operate(left.evaluate(context), operator,
+                                  right.evaluate(context));
+            if (context.profiler != null && !isShared(value)) {
+                context.profiler.allocated(this);
+            }
+            return value;
+        }
+        
+        public double evaluateNumber(Context context) {
             switch (operator) {
-            case '=':
-                // Coerce to the left argument's type, then compare.
-                if (leftVal instanceof NumberValue) {
-                    return new NumberValue((leftVal.toNumber() ==
-                                            rightVal.toNumber()) ? 1 : 0);
-                } else {
-                    return new NumberValue(leftVal.toString().equals(
-                                           rightVal.toString()) ? 1 : 0);
-                }
-            case '+':
-                // Addition if the left argument is a number, otherwise do
-                // string concatenation.
-                if (leftVal instanceof NumberValue) {
-                    return new NumberValue(leftVal.toNumber() +
-                                           rightVal.toNumber());
-                } else {
-                    return new StringValue(leftVal.toString() +
-                            rightVal.toString());
-                }
             case '-':
-                return new NumberValue(leftVal.toNumber() -
-                        rightVal.toNumber());
+                return left.evaluateNumber(context) -
+                       right.evaluateNumber(context);
             case '*':
-                return new NumberValue(leftVal.toNumber() *
-                        rightVal.toNumber());
+                return left.evaluateNumber(context) *
+                       right.evaluateNumber(context);
             case '/':
-                return new NumberValue(leftVal.toNumber() /
-                        rightVal.toNumber());
-            case '<':
-                // Coerce to the left argument's type, then compare.
-                if (leftVal instanceof NumberValue) {
-                    return new NumberValue((leftVal.toNumber() <
-                                            rightVal.toNumber()) ? 1 : 0);
-                } else {
-                    return new NumberValue((leftVal.toString().compareTo(
-                                           rightVal.toString()) < 0) ? 1 : 0);
-                }
-            case '>':
-                // Coerce to the left argument's type, then compare.
-                if (leftVal instanceof NumberValue) {
-                    return new NumberValue((leftVal.toNumber() >
-                                            rightVal.toNumber()) ? 1 : 0);
-                } else {
-                    return new NumberValue((leftVal.toString().compareTo(
-                            rightVal.toString()) > 0) ? 1 : 0);
-                }
+                return left.evaluateNumber(context) /
+                       right.evaluateNumber(context);
+            }
+            
+            // The other operators depend on the type of the left argument. If
+            // we know it's a number, we can do the math directly. Otherwise,
+            // take the slow path.
+            if (!numeric) return evaluate(context).toNumber();
+            
+            double leftVal = left.evaluateNumber(context);
+            double rightVal = right.evaluateNumber(context);
+            switch (operator) {
+            case '=': return (leftVal == rightVal) ? 1 : 0;
+            case '+': return leftVal + rightVal;
+            case '<': return (leftVal < rightVal) ? 1 : 0;
+            case '>': return (leftVal > rightVal) ? 1 : 0;
             }
             throw new Error("Unknown operator.");
         }
         
+        /**
+         * Returns true if the operator can be done entirely on unboxed
+         * numbers: either it always coerces both sides to numbers, or the
+         * left-hand side is known to be a number. The compilers use this to
+         * decide which operators to compile to plain arithmetic.
+         */
+        private boolean isUnboxed() {
+            switch (operator) {
+            case '-': case '*': case '/': return true;
+            }
+            return numeric;
+        }
+        
         private final Expression left;
         private final char operator;
         private final Expression right;
+        private boolean numeric;
     }
     
-    // Value types -------------------------------------------------------------
+    /**
+     * Determines whether a value is one of the shared ones that valueOf()
+     * hands out from its cache, instead of a new object.
+     */
+    private static boolean isShared(Value value) {
+        if (value == StringValue.EMPTY) return true;
+        if (!(value instanceof NumberValue)) return false;
+        
+        double number = value.toNumber();
+        int whole = (int)number;
+        return whole >= NumberValue.CACHE_MIN &&
+               whole <= NumberValue.CACHE_MAX &&
+               NumberValue.CACHE[whole - NumberValue.CACHE_MIN] == value;
+    }
     
     /**
-     * This is the base interface for a value. Values are the data that the
-     * interpreter processes. They are what gets stored in variables, printed,
-     * and operated on.
+     * Applies a binary operator to two already-evaluated values. This is the
+     * dynamically-typed core of every operator expression, shared by anything
+     * that needs to do Jasic arithmetic on boxed values.
      * 
-     * There is an implementation of this interface for each of the different
-     * primitive types (really just double and string) that Jasic supports.
-     * Wrapping them in a single Value interface lets Jasic be dynamically-typed
-     * and convert between different representations as needed.
+     * @param  leftVal  The value of the left-hand argument.
+     * @param  operator The operator character.
+     * @param  rightVal The value of the right-hand argument.
+     * @return          The result of the operation.
+     */
+    private static Value operate(Value leftVal, char operator,
+                                 Value rightVal) {
+        switch (operator) {
+        case '=':
+            // Coerce to the left argument's type, then compare.
+            if (leftVal instanceof NumberValue) {
+                return NumberValue.valueOf((leftVal.toNumber() ==
+                                        rightVal.toNumber()) ? 1 : 0);
+            } else {
+                return NumberValue.valueOf(leftVal.toString().equals(
+                                       rightVal.toString()) ? 1 : 0);
+            }
+        case '+':
+            // Addition if the left argument is a number, otherwise do
+            // string concatenation.
+            if (leftVal instanceof NumberValue) {
+                return NumberValue.valueOf(leftVal.toNumber() +
+                                       rightVal.toNumber());
+            } else if (leftVal instanceof StringValue) {
+                return ((StringValue)leftVal).append(rightVal.toString());
+            } else {
+                return StringValue.valueOf(leftVal.toString() +
+                        rightVal.toString());
+            }
+        case '-':
+            return NumberValue.valueOf(leftVal.toNumber() -
+                    rightVal.toNumber());
+        case '*':
+            return NumberValue.valueOf(leftVal.toNumber() *
+                    rightVal.toNumber());
+        case '/':
+            return NumberValue.valueOf(leftVal.toNumber() /
+                    rightVal.toNumber());
+        case '<':
+            // Coerce to the left argument's type, then compare.
+            if (leftVal instanceof NumberValue) {
+                return NumberValue.valueOf((leftVal.toNumber() <
+                                        rightVal.toNumber()) ? 1 : 0);
+            } else {
+                return NumberValue.valueOf((leftVal.toString().compareTo(
+                                       rightVal.toString()) < 0) ? 1 : 0);
+            }
+        case '>':
+            // Coerce to the left argument's type, then compare.
+            if (leftVal instanceof NumberValue) {
+                return NumberValue.valueOf((leftVal.toNumber() >
+                                        rightVal.toNumber()) ? 1 : 0);
+            } else {
+                return NumberValue.valueOf((leftVal.toString().compareTo(
+                        rightVal.toString()) > 0) ? 1 : 0);
+            }
+        }
+        throw new Error("Unknown operator.");
+    }
+    
+    // Resolving ---------------------------------------------------------------
+
+    // Once the program is parsed, we know every label and variable name it
+    // will ever use. Instead of looking each one up by name in a hash table
+    // every time it's read or written, we give each name a small integer
+    // "slot" and store the values in a flat array. This is what real compilers
+    // do for local variables: names are only for the programmer, the machine
+    // just needs an index.
+
+    /**
+     * Binds each "goto" and "if then" statement to the index of the statement
+     * it jumps to. Doing this once up front means a jump at runtime is just a
+     * field read instead of a hash table lookup, and it lets us report a
+     * misspelled label when the script is loaded instead of silently doing
+     * nothing when the jump is reached.
      * 
-     * Note that Value extends Expression. This is a bit of a hack, but it lets
-     * us use values (which are typically only ever seen by the interpreter and
-     * not the parser) as both runtime values, and as object representing
-     * literals in code.
+     * This also pairs up each "for" with its "next", the same way a compiler
+     * would match up braces, so that each one knows where the other is.
+     * 
+     * @param statements The parsed statements to link.
+     * @param labels     The statement index for each label.
      */
-    public interface Value extends Expression {
-        /**
-         * Value types override this to convert themselves to a string
-         * representation.
-         */
-        String toString();
+    private static void link(List<Statement> statements,
+                             Map<String, Integer> labels) {
+        Deque<Integer> loops = new ArrayDeque<Integer>();
+        for (int i = 0; i < statements.size(); i++) {
+            Statement statement = statements.get(i);
+            if (statement instanceof GotoStatement) {
+                GotoStatement jump = (GotoStatement)statement;
+                jump.target = target(labels, jump.label);
+            } else if (statement instanceof IfThenStatement) {
+                IfThenStatement jump = (IfThenStatement)statement;
+                jump.target = target(labels, jump.label);
+            } else if (statement instanceof ForStatement) {
+                loops.push(i);
+            } else if (statement instanceof NextStatement) {
+                NextStatement next = (NextStatement)statement;
+                if (loops.isEmpty()) throw new Error("Next without for.");
+                
+                int start = loops.pop();
+                ForStatement loop = (ForStatement)statements.get(start);
+                if (next.name != null && !next.name.equals(loop.name)) {
+                    throw new Error("Next " + next.name +
+                            " doesn't match for " + loop.name + ".");
+                }
+                
+                next.loop = loop;
+                next.body = start + 1;
+                loop.exit = i + 1;
+            }
+        }
         
-        /**
-         * Value types override this to convert themselves to a numeric
-         * representation.
-         */
-        double toNumber();
+        if (!loops.isEmpty()) throw new Error("For without next.");
     }
     
     /**
-     * A numeric value. Jasic uses doubles internally for all numbers.
+     * Looks up the statement index for the given label.
+     * 
+     * @param  labels The statement index for each label.
+     * @param  label  The name of the label.
+     * @return        The index of the statement after the label.
      */
-    public class NumberValue implements Value {
-        public NumberValue(double value) {
-            this.value = value;
+    private static int target(Map<String, Integer> labels, String label) {
+        Integer target = labels.get(label);
+        if (target == null) throw new Error("Unknown label '" + label + "'.");
+        return target;
+    }
+    
+    /**
+     * Walks the parsed statements and assigns every variable a slot. The
+     * name-to-slot table is kept with the program, so it can still be used to
+     * look up a variable by name.
+     * 
+     * Arrays get slots from the same table, which means type inference can
+     * treat them just like variables. HACK: To keep them from colliding with
+     * a variable of the same name, they're stored under their name plus "()".
+     * That can't be a variable name, since it isn't a valid word. In the
+     * same way, each "for" keeps its limit and step in hidden variables named
+     * after its counter, like "i to" and "i step".
+     * 
+     * @param statements The parsed statements to resolve.
+     * @param slots      The slot for each variable name seen so far.
+     */
+    private static void resolve(List<Statement> statements,
+                                Map<String, Integer> slots) {
+        for (Statement statement : statements) {
+            if (statement instanceof AssignStatement) {
+                AssignStatement assign = (AssignStatement)statement;
+                assign.slot = slot(slots, assign.name);
+                resolve(assign.value, slots);
+            } else if (statement instanceof InputStatement) {
+                InputStatement input = (InputStatement)statement;
+                input.slot = slot(slots, input.name);
+            } else if (statement instanceof PrintStatement) {
+                resolve(((PrintStatement)statement).expression, slots);
+            } else if (statement instanceof IfThenStatement) {
+                resolve(((IfThenStatement)statement).condition, slots);
+            } else if (statement instanceof ForStatement) {
+                ForStatement loop = (ForStatement)statement;
+                loop.slot = slot(slots, loop.name);
+                loop.limitSlot = slot(slots, loop.name + " to");
+                loop.stepSlot = slot(slots, loop.name + " step");
+                resolve(loop.start, slots);
+                resolve(loop.limit, slots);
+                resolve(loop.step, slots);
+            } else if (statement instanceof NextStatement) {
+                NextStatement next = (NextStatement)statement;
+                String name = next.loop.name;
+                next.slot = slot(slots, name);
+                next.limitSlot = slot(slots, name + " to");
+                next.stepSlot = slot(slots, name + " step");
+            } else if (statement instanceof DimStatement) {
+                DimStatement dim = (DimStatement)statement;
+                dim.slot = slot(slots, dim.name + "()");
+                resolve(dim.size, slots);
+            } else if (statement instanceof ArrayAssignStatement) {
+                ArrayAssignStatement assign = (ArrayAssignStatement)statement;
+                assign.slot = slot(slots, assign.name + "()");
+                resolve(assign.index, slots);
+                resolve(assign.value, slots);
+            }
         }
-        
-        @Override public String toString() { return Double.toString(value); }
-        public double toNumber() { return value; }
-        public Value evaluate() { return this; }
-
-        private final double value;
     }
     
     /**
-     * A string value.
+     * Resolves the variables used in a single expression.
+     * 
+     * @param expression The expression to resolve.
+     * @param slots      The slot for each variable name seen so far.
      */
-    public class StringValue implements Value {
-        public StringValue(String value) {
-            this.value = value;
+    private static void resolve(Expression expression,
+                                Map<String, Integer> slots) {
+        if (expression instanceof VariableExpression) {
+            VariableExpression variable = (VariableExpression)expression;
+            variable.slot = slot(slots, variable.name);
+        } else if (expression instanceof OperatorExpression) {
+            OperatorExpression operator = (OperatorExpression)expression;
+            resolve(operator.left, slots);
+            resolve(operator.right, slots);
+        } else if (expression instanceof ArrayExpression) {
+            ArrayExpression array = (ArrayExpression)expression;
+            array.slot = slot(slots, array.name + "()");
+            resolve(array.index, slots);
         }
-        
-        @Override public String toString() { return value; }
-        public double toNumber() { return Double.parseDouble(value); }
-        public Value evaluate() { return this; }
-
-        private final String value;
     }
-
-    // Interpreter -------------------------------------------------------------
     
     /**
-     * Constructs a new Jasic instance. The instance stores the global state of
-     * the interpreter such as the values of all of the variables and the
-     * current statement.
+     * Gets the slot for the variable with the given name, assigning it the
+     * next free one if this is the first time we've seen it.
+     * 
+     * @param  slots The slot for each variable name seen so far.
+     * @param  name  The name of the variable.
+     * @return       The index of the variable in the variables array.
      */
-    public Jasic() {
-        variables = new HashMap<String, Value>();
-        labels = new HashMap<String, Integer>();
-        
-        InputStreamReader converter = new InputStreamReader(System.in);
-        lineIn = new BufferedReader(converter);
+    private static int slot(Map<String, Integer> slots, String name) {
+        Integer slot = slots.get(name);
+        if (slot == null) {
+            slot = slots.size();
+            slots.put(name, slot);
+        }
+        return slot;
     }
-
+    
+    // Type inference ----------------------------------------------------------
+    
+    // Jasic is dynamically typed, but most variables in real scripts only ever
+    // hold numbers. If we can prove that, we can keep them in a plain double[]
+    // and do arithmetic on them without wrapping every intermediate result in
+    // a NumberValue. The rules are simple: number literals and the arithmetic
+    // and comparison operators always produce numbers, "+" produces a number
+    // when its left argument does, and a variable is a number if every
+    // assignment to it is. Since unset variables default to 0, a variable that
+    // is never assigned is a number too. Anything set by "input" could be
+    // either, so it isn't. Arrays work the same way: their elements start out
+    // as 0, so an array is a number array if every element assigned is. A
+    // "for" loop always stores numbers in its counter, so it never rules one
+    // out.
+    
     /**
-     * This is where the magic happens. This runs the code through the parsing
-     * pipeline to generate the AST. Then it executes each statement. It keeps
-     * track of the current line in a member variable that the statement objects
-     * have access to. This lets "goto" and "if then" do flow control by simply
-     * setting the index of the current statement.
-     *
-     * In an interpreter that didn't mix the interpretation logic in with the
-     * AST node classes, this would be doing a lot more work.
+     * Infers which variables only ever hold numbers, then marks the AST nodes
+     * that touch them so that they use the unboxed numeric storage.
      * 
-     * @param source A string containing the source code of a .jas script to
-     *               interpret.
+     * @param  statements The resolved statements to analyze.
+     * @param  slotCount  The number of variable slots.
+     * @return            Which variable slots hold only numbers.
      */
-    public void interpret(String source) {
-        // Tokenize.
-        List<Token> tokens = tokenize(source);
+    private static boolean[] inferTypes(List<Statement> statements,
+                                        int slotCount) {
+        // Start by assuming every variable is a number, then rule out the ones
+        // that aren't until nothing changes. Each variable we rule out can
+        // only make other expressions less numeric, so this terminates.
+        boolean[] numeric = new boolean[slotCount];
+        Arrays.fill(numeric, true);
         
-        // Parse.
-        Parser parser = new Parser(tokens);
-        List<Statement> statements = parser.parse(labels);
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (Statement statement : statements) {
+                int slot = -1;
+                if (statement instanceof AssignStatement) {
+                    AssignStatement assign = (AssignStatement)statement;
+                    if (!isNumber(assign.value, numeric)) slot = assign.slot;
+                } else if (statement instanceof InputStatement) {
+                    slot = ((InputStatement)statement).slot;
+                } else if (statement instanceof ArrayAssignStatement) {
+                    ArrayAssignStatement assign =
+                        (ArrayAssignStatement)statement;
+                    if (!isNumber(assign.value, numeric)) slot = assign.slot;
+                }
+                
+                if (slot != -1 && numeric[slot]) {
+                    numeric[slot] = false;
+                    changed = true;
+                }
+            }
+        }
         
-        // Interpret until we're done.
-        currentStatement = 0;
-        while (currentStatement < statements.size()) {
-            int thisStatement = currentStatement;
-            currentStatement++;
-            statements.get(thisStatement).execute();
+        // Now that we know the types, tell the nodes.
+        for (Statement statement : statements) {
+            if (statement instanceof AssignStatement) {
+                AssignStatement assign = (AssignStatement)statement;
+                assign.numeric = numeric[assign.slot];
+                markTypes(assign.value, numeric);
+            } else if (statement instanceof PrintStatement) {
+                PrintStatement print = (PrintStatement)statement;
+                print.numeric = isNumber(print.expression, numeric);
+                markTypes(print.expression, numeric);
+            } else if (statement instanceof IfThenStatement) {
+                markTypes(((IfThenStatement)statement).condition, numeric);
+            } else if (statement instanceof ForStatement) {
+                ForStatement loop = (ForStatement)statement;
+                loop.numeric = numeric[loop.slot];
+                markTypes(loop.start, numeric);
+                markTypes(loop.limit, numeric);
+                markTypes(loop.step, numeric);
+            } else if (statement instanceof NextStatement) {
+                NextStatement next = (NextStatement)statement;
+                next.numeric = numeric[next.slot];
+            } else if (statement instanceof DimStatement) {
+                markTypes(((DimStatement)statement).size, numeric);
+            } else if (statement instanceof ArrayAssignStatement) {
+                ArrayAssignStatement assign = (ArrayAssignStatement)statement;
+                assign.numeric = numeric[assign.slot];
+                markTypes(assign.index, numeric);
+                markTypes(assign.value, numeric);
+            }
         }
+        
+        return numeric;
     }
     
-    private final Map<String, Value> variables;
-    private final Map<String, Integer> labels;
-    
-    private final BufferedReader lineIn;
+    /**
+     * Marks the nodes in an expression with the inferred types.
+     * 
+     * @param expression The expression to mark.
+     * @param numeric    Which variable slots hold only numbers.
+     */
+    private static void markTypes(Expression expression, boolean[] numeric) {
+        if (expression instanceof VariableExpression) {
+            VariableExpression variable = (VariableExpression)expression;
+            variable.numeric = numeric[variable.slot];
+        } else if (expression instanceof OperatorExpression) {
+            OperatorExpression operator = (OperatorExpression)expression;
+            operator.numeric = isNumber(operator.left, numeric);
+            markTypes(operator.left, numeric);
+            markTypes(operator.right, numeric);
+        } else if (expression instanceof ArrayExpression) {
+            ArrayExpression array = (ArrayExpression)expression;
+            array.numeric = numeric[array.slot];
+            markTypes(array.index, numeric);
+        }
+    }
     
-    private int currentStatement;
+    /**
+     * Determines whether an expression will always evaluate to a number.
+     * 
+     * @param  expression The expression to check.
+     * @param  numeric    Which variable slots hold only numbers.
+     * @return            True if the result is known to be a number.
+     */
+    private static boolean isNumber(Expression expression,
+                                    boolean[] numeric) {
+        if (expression instanceof NumberValue) return true;
+        if (expression instanceof VariableExpression) {
+            return numeric[((VariableExpression)expression).slot];
+        }
+        if (expression instanceof OperatorExpression) {
+            OperatorExpression operator = (OperatorExpression)expression;
+            if (operator.operator != '+') return true;
+            return isNumber(operator.left, numeric);
+        }
+        if (expression instanceof ArrayExpression) {
+            return numeric[((ArrayExpression)expression).slot];
+        }
+        return false;
+    }
+
+    // Optimizing --------------------------------------------------------------
     
-    // Utility stuff -----------------------------------------------------------
+    // Since there are no fractional number literals, scripts write things like
+    // "pi = 314159 / 100000", and the interpreter dutifully does that division
+    // every time the statement runs. Likewise, a value that's set once at the
+    // top of a script and never changed still gets looked up every time it's
+    // used. This pass cleans that up before the program runs:
+    //
+    // - Operators whose arguments are both literals are done once, and
+    //   replaced with the result.
+    // - A few operations that don't change a number, like "x * 1" and
+    //   "x - 0", are removed when we know x is a number.
+    // - A variable that's assigned a constant exactly once, in the run of
+    //   statements at the top of the script before the first label or jump,
+    //   is a constant. Since those statements always run first, in order,
+    //   every later use of the variable can be replaced with its value.
+    // - "if" statements whose condition is a non-zero number become "goto".
+    //
+    // The statements are rebuilt rather than changed, and they keep their
+    // indexes, so labels still point to the right place.
     
     /**
-     * Reads the file from the given path and returns its contents as a single
-     * string.
+     * Simplifies the statements. The statements need to be resolved and have
+     * their types inferred first, and the result needs to be linked, resolved,
+     * and inferred again.
      * 
-     * @param  path  Path to the text file to read.
-     * @return       The contents of the file or null if the load failed.
-     * @throws       IOException
+     * @param  statements The statements to optimize.
+     * @param  labels     The statement index for each label.
+     * @param  numeric    Which variable slots hold only numbers.
+     * @return            The simplified statements.
      */
-    private static String readFile(String path) {
-        try {
-            FileInputStream stream = new FileInputStream(path);
+    private static List<Statement> optimize(List<Statement> statements,
+            Map<String, Integer> labels, boolean[] numeric) {
+        // Count how many places assign each variable.
+        Map<String, Integer> assignments = new HashMap<String, Integer>();
+        for (Statement statement : statements) {
+            String name = null;
+            if (statement instanceof AssignStatement) {
+                name = ((AssignStatement)statement).name;
+            } else if (statement instanceof InputStatement) {
+                name = ((InputStatement)statement).name;
+            } else if (statement instanceof ForStatement) {
+                name = ((ForStatement)statement).name;
+            }
             
-            try {
-                InputStreamReader input = new InputStreamReader(stream,
-                    Charset.defaultCharset());
-                Reader reader = new BufferedReader(input);
-                
-                StringBuilder builder = new StringBuilder();
-                char[] buffer = new char[8192];
-                int read;
-                
-                while ((read = reader.read(buffer, 0, buffer.length)) > 0) {
-                    builder.append(buffer, 0, read);
+            if (name != null) {
+                Integer count = assignments.get(name);
+                assignments.put(name, (count == null) ? 1 : count + 1);
+            }
+        }
+        
+        // Find where the straight-line code at the top ends: at the first
+        // statement that a jump can land on, or the first jump.
+        int prefix = statements.size();
+        for (int index : labels.values()) prefix = Math.min(prefix, index);
+        for (int i = 0; i < prefix; i++) {
+            Statement statement = statements.get(i);
+            if (statement instanceof GotoStatement ||
+                statement instanceof IfThenStatement ||
+                statement instanceof ForStatement ||
+                statement instanceof NextStatement) {
+                prefix = i;
+            }
+        }
+        
+        Map<String, Value> constants = new HashMap<String, Value>();
+        List<Statement> optimized =
+            new ArrayList<Statement>(statements.size());
+        for (int i = 0; i < statements.size(); i++) {
+            Statement statement = statements.get(i);
+            if (statement instanceof AssignStatement) {
+                AssignStatement assign = (AssignStatement)statement;
+                Expression value = fold(assign.value, constants, numeric);
+                if (i < prefix && value instanceof Value &&
+                    assignments.get(assign.name) == 1) {
+                    constants.put(assign.name, (Value)value);
                 }
                 
-                // HACK: The parser expects every statement to end in a newline,
-                // even the very last one, so we'll just tack one on here in
-                // case the file doesn't have one.
-                builder.append("\n");
-                
-                return builder.toString();
-            } finally {
-                stream.close();
+                if (value != assign.value) {
+                    statement = new AssignStatement(assign.name, value);
+                }
+            } else if (statement instanceof PrintStatement) {
+                PrintStatement print = (PrintStatement)statement;
+                Expression expression = fold(print.expression, constants,
+                                             numeric);
+                if (expression != print.expression) {
+                    statement = new PrintStatement(expression);
+                }
+            } else if (statement instanceof IfThenStatement) {
+                IfThenStatement ifThen = (IfThenStatement)statement;
+                Expression condition = fold(ifThen.condition, constants,
+                                            numeric);
+                if (condition instanceof NumberValue &&
+                    ((NumberValue)condition).toNumber() != 0) {
+                    statement = new GotoStatement(ifThen.label);
+                } else if (condition != ifThen.condition) {
+                    statement = new IfThenStatement(condition, ifThen.label);
+                }
+            } else if (statement instanceof ForStatement) {
+                ForStatement loop = (ForStatement)statement;
+                Expression start = fold(loop.start, constants, numeric);
+                Expression limit = fold(loop.limit, constants, numeric);
+                Expression step = fold(loop.step, constants, numeric);
+                if (start != loop.start || limit != loop.limit ||
+                    step != loop.step) {
+                    statement = new ForStatement(loop.name, start, limit,
+                                                 step);
+                }
+            } else if (statement instanceof DimStatement) {
+                DimStatement dim = (DimStatement)statement;
+                Expression size = fold(dim.size, constants, numeric);
+                if (size != dim.size) {
+                    statement = new DimStatement(dim.name, size);
+                }
+            } else if (statement instanceof ArrayAssignStatement) {
+                ArrayAssignStatement assign = (ArrayAssignStatement)statement;
+                Expression index = fold(assign.index, constants, numeric);
+                Expression value = fold(assign.value, constants, numeric);
+                if (index != assign.index || value != assign.value) {
+                    statement = new ArrayAssignStatement(assign.name, index,
+                                                         value);
+                }
             }
-        } catch (IOException ex) {
-            return null;
+            
+            optimized.add(statement);
         }
+        
+        return optimized;
+    }
+    
+    /**
+     * Folds the constants in an expression.
+     * 
+     * @param  expression The expression to fold.
+     * @param  constants  The values of the variables known to be constant.
+     * @param  numeric    Which variable slots hold only numbers.
+     * @return            The simplified expression, or the same one if it
+     *                    can't be simplified.
+     */
+    private static Expression fold(Expression expression,
+            Map<String, Value> constants, boolean[] numeric) {
+        if (expression instanceof VariableExpression) {
+            Value value = constants.get(((VariableExpression)expression).name);
+            if (value != null) return value;
+        } else if (expression instanceof OperatorExpression) {
+            OperatorExpression operator = (OperatorExpression)expression;
+            Expression left = fold(operator.left, constants, numeric);
+            Expression right = fold(operator.right, constants, numeric);
+            
+            if (left instanceof Value && right instanceof Value) {
+                try {
+                    return operate((Value)left, operator.operator,
+                                   (Value)right);
+                } catch (NumberFormatException ex) {
+                    // Doing math on a string that isn't a number is an
+                    // error, but only if the statement actually runs.
+                }
+            }
+            
+            switch (operator.operator) {
+            case '*':
+                if (isLiteral(left, 1) && isNumber(right, numeric)) {
+                    return right;
+                }
+                if (isLiteral(right, 1) && isNumber(left, numeric)) {
+                    return left;
+                }
+                break;
+            case '/':
+                if (isLiteral(right, 1) && isNumber(left, numeric)) {
+                    return left;
+                }
+                break;
+            case '-':
+                // Subtracting negative zero isn't a no-op. -0 - -0 is 0.
+                if (isLiteral(right, 0) && isNumber(left, numeric) &&
+                    Double.doubleToRawLongBits(
+                        ((Value)right).toNumber()) == 0) {
+                    return left;
+                }
+                break;
+            }
+            
+            if (left != operator.left || right != operator.right) {
+                return new OperatorExpression(left, operator.operator, right);
+            }
+        } else if (expression instanceof ArrayExpression) {
+            ArrayExpression array = (ArrayExpression)expression;
+            Expression index = fold(array.index, constants, numeric);
+            if (index != array.index) {
+                return new ArrayExpression(array.name, index);
+            }
+        }
+        
+        return expression;
+    }
+    
+    /**
+     * Determines whether an expression is the given number literal.
+     */
+    private static boolean isLiteral(Expression expression, double value) {
+        return expression instanceof NumberValue &&
+               ((NumberValue)expression).toNumber() == value;
+    }
+    
+    // Superinstructions -------------------------------------------------------
+    
+    // Almost every loop in a Jasic script ends the same way:
+    //
+    //     i = i + 1
+    //     if i < count then loop
+    //
+    // Walking the tree for that means an assignment node, an operator node,
+    // two variable nodes, a comparison that produces 1 or 0, and a test of
+    // that against 0. Each of those is a virtual call. Instead, once the
+    // types are known, the tree engine replaces the common shapes with single
+    // "fused" nodes that do the whole thing directly on the numeric variable
+    // array:
+    //
+    // - "i = i + 1" (or minus any number) becomes an IncrementStatement.
+    // - "x = x + expr" becomes an AccumulateStatement.
+    // - "if a < b then label" becomes a CompareStatement that compares the
+    //   numbers directly.
+    // - An increment followed by a comparison of the same variable becomes a
+    //   single LoopStatement that does both.
+    //
+    // All of these only apply to numeric variables and comparisons, where we
+    // know the types. The fused statement takes the place of the first
+    // statement it covers, and the rest are left where they are, so any label
+    // pointing at them still works. When the fused statement runs, it just
+    // skips over them.
+    //
+    // The bytecode and JVM engines already compile these shapes to a single
+    // instruction or two, so they use the plain statements.
+    
+    /**
+     * Replaces common statement patterns with fused statements.
+     * 
+     * @param  statements The resolved and type-checked statements.
+     * @param  numeric    Which variable slots hold only numbers.
+     * @return            The statements to run in the tree engine.
+     */
+    private static List<Statement> fuse(List<Statement> statements,
+                                        boolean[] numeric) {
+        List<Statement> fused = new ArrayList<Statement>(statements.size());
+        for (int i = 0; i < statements.size(); i++) {
+            Statement statement = statements.get(i);
+            Statement next = (i + 1 < statements.size()) ?
+                statements.get(i + 1) : null;
+            
+            IncrementStatement increment = increment(statement);
+            CompareStatement compare = compare(next, numeric);
+            if (increment != null && compare != null &&
+                isVariable(compare.left, increment.slot)) {
+                fused.add(new LoopStatement(increment.slot, increment.amount,
+                    compare.operator, compare.right, compare.target, i + 2));
+            } else if (increment != null) {
+                fused.add(increment);
+            } else if ((compare = compare(statement, numeric)) != null) {
+                fused.add(compare);
+            } else if (statement instanceof AssignStatement) {
+                fused.add(accumulate((AssignStatement)statement, numeric));
+            } else {
+                fused.add(statement);
+            }
+        }
+        
+        return fused;
+    }
+    
+    /**
+     * Fuses "x = x + n" or "x = x - n" where x is a number variable and n is
+     * a number literal.
+     * 
+     * @return The fused statement, or null if it doesn't match.
+     */
+    private static IncrementStatement increment(Statement statement) {
+        if (!(statement instanceof AssignStatement)) return null;
+        AssignStatement assign = (AssignStatement)statement;
+        if (!assign.numeric) return null;
+        if (!(assign.value instanceof OperatorExpression)) return null;
+        
+        OperatorExpression operator = (OperatorExpression)assign.value;
+        if (operator.operator != '+' && operator.operator != '-') return null;
+        if (!isVariable(operator.left, assign.slot)) return null;
+        if (!(operator.right instanceof NumberValue)) return null;
+        
+        // Subtracting a number is exactly the same as adding its negation.
+        double amount = ((NumberValue)operator.right).toNumber();
+        if (operator.operator == '-') amount = -amount;
+        return new IncrementStatement(assign.slot, amount);
+    }
+    
+    /**
+     * Fuses "x = x + expr" or "x = x - expr" where x and expr are numbers.
+     * Since addition is commutative, "x = expr + x" works too.
+     * 
+     * @return The fused statement, or the original one if it doesn't match.
+     */
+    private static Statement accumulate(AssignStatement assign,
+                                        boolean[] numeric) {
+        if (!assign.numeric) return assign;
+        if (!(assign.value instanceof OperatorExpression)) return assign;
+        
+        OperatorExpression operator = (OperatorExpression)assign.value;
+        if (operator.operator != '+' && operator.operator != '-') {
+            return assign;
+        }
+        
+        if (isVariable(operator.left, assign.slot) &&
+            isNumber(operator.right, numeric)) {
+            return new AccumulateStatement(assign.slot, operator.right,
+                                           operator.operator == '-');
+        }
+        if (operator.operator == '+' &&
+            isVariable(operator.right, assign.slot) &&
+            isNumber(operator.left, numeric)) {
+            return new AccumulateStatement(assign.slot, operator.left, false);
+        }
+        return assign;
+    }
+    
+    /**
+     * Fuses "if a < b then label" where a is a number, and the operator is
+     * one of the comparisons.
+     * 
+     * @return The fused statement, or null if it doesn't match.
+     */
+    private static CompareStatement compare(Statement statement,
+                                            boolean[] numeric) {
+        if (!(statement instanceof IfThenStatement)) return null;
+        IfThenStatement ifThen = (IfThenStatement)statement;
+        if (!(ifThen.condition instanceof OperatorExpression)) return null;
+        
+        OperatorExpression operator = (OperatorExpression)ifThen.condition;
+        if ("=<>".indexOf(operator.operator) == -1) return null;
+        if (!isNumber(operator.left, numeric)) return null;
+        
+        return new CompareStatement(operator.left, operator.operator,
+                                    operator.right, ifThen.target);
+    }
+    
+    private static boolean isVariable(Expression expression, int slot) {
+        return expression instanceof VariableExpression &&
+               ((VariableExpression)expression).slot == slot;
+    }
+    
+    /**
+     * Adds a constant to a number variable.
+     */
+    private static class IncrementStatement implements Statement {
+        public IncrementStatement(int slot, double amount) {
+            this.slot = slot;
+            this.amount = amount;
+        }
+        
+        public void execute(Context context) {
+            context.numbers[slot] += amount;
+        }
+        
+        private final int slot;
+        private final double amount;
+    }
+    
+    /**
+     * Adds (or subtracts) a number to a number variable.
+     */
+    private static class AccumulateStatement implements Statement {
+        public AccumulateStatement(int slot, Expression value,
+                                   boolean subtract) {
+            this.slot = slot;
+            this.value = value;
+            this.subtract = subtract;
+        }
+        
+        public void execute(Context context) {
+            double amount = value.evaluateNumber(context);
+            if (subtract) {
+                context.numbers[slot] -= amount;
+            } else {
+                context.numbers[slot] += amount;
+            }
+        }
+        
+        private final int slot;
+        private final Expression value;
+        private final boolean subtract;
+    }
+    
+    /**
+     * Jumps if a comparison of two numbers is true.
+     */
+    private static class CompareStatement implements Statement {
+        public CompareStatement(Expression left, char operator,
+                                Expression right, int target) {
+            this.left = left;
+            this.operator = operator;
+            this.right = right;
+            this.target = target;
+        }
+        
+        public void execute(Context context) {
+            if (compare(left.evaluateNumber(context), operator,
+                        right.evaluateNumber(context))) {
+                context.currentStatement = target;
+            }
+        }
+        
+        private final Expression left;
+        private final char operator;
+        private final Expression right;
+        private final int target;
+    }
+    
+    /**
+     * Increments a number variable, then jumps if comparing it to something
+     * is true. Otherwise, skips past the comparison statement it replaced.
+     */
+    private static class LoopStatement implements Statement {
+        public LoopStatement(int slot, double amount, char operator,
+                             Expression limit, int target, int next) {
+            this.slot = slot;
+            this.amount = amount;
+            this.operator = operator;
+            this.limit = limit;
+            this.target = target;
+            this.next = next;
+        }
+        
+        public void execute(Context context) {
+            double value = context.numbers[slot] += amount;
+            if (compare(value, operator, limit.evaluateNumber(context))) {
+                context.currentStatement = target;
+            } else {
+                context.currentStatement = next;
+            }
+        }
+        
+        private final int slot;
+        private final double amount;
+        private final char operator;
+        private final Expression limit;
+        private final int target;
+        private final int next;
+    }
+    
+    /**
+     * Compares two numbers with one of the comparison operators.
+     */
+    private static boolean compare(double left, char operator, double right) {
+        switch (operator) {
+        case '=': return left == right;
+        case '<': return left < right;
+        case '>': return left > right;
+        }
+        throw new Error("Unknown operator.");
+    }
+    
+    // Value types -------------------------------------------------------------
+    
+    /**
+     * This is the base interface for a value. Values are the data that the
+     * interpreter processes. They are what gets stored in variables, printed,
+     * and operated on.
+     * 
+     * There is an implementation of this interface for each of the different
+     * primitive types (really just double and string) that Jasic supports.
+     * Wrapping them in a single Value interface lets Jasic be dynamically-typed
+     * and convert between different representations as needed.
+     * 
+     * Note that Value extends Expression. This is a bit of a hack, but it lets
+     * us use values (which are typically only ever seen by the interpreter and
+     * not the parser) as both runtime values, and as object representing
+     * literals in code.
+     */
+    public interface Value extends Expression {
+        /**
+         * Value types override this to convert themselves to a string
+         * representation.
+         */
+        String toString();
+        
+        /**
+         * Value types override this to convert themselves to a numeric
+         * representation.
+         */
+        double toNumber();
+    }
+    
+    /**
+     * A numeric value. Jasic uses doubles internally for all numbers.
+     * 
+     * Formatting a number is slow next to the math, and a number that's
+     * printed or joined to a string once is likely to be again, so the string
+     * is kept the first time it's made.
+     */
+    public static class NumberValue implements Value {
+        /**
+         * Gets a value for the given number. Comparisons only ever produce 0
+         * or 1, and loop counters are usually small, so whole numbers in a
+         * small range come from a cache instead of creating a new object
+         * every time.
+         * 
+         * @param  value The number.
+         * @return       A value for the number.
+         */
+        public static NumberValue valueOf(double value) {
+            int whole = (int)value;
+            if (whole == value && whole >= CACHE_MIN && whole <= CACHE_MAX &&
+                Double.doubleToRawLongBits(value) != NEGATIVE_ZERO) {
+                if (countValues) valueCacheHits.increment();
+                return CACHE[whole - CACHE_MIN];
+            }
+            
+            if (countValues) valueCacheMisses.increment();
+            return new NumberValue(value);
+        }
+        
+        private NumberValue(double value) {
+            this.value = value;
+        }
+        
+        @Override public String toString() {
+            // HACK: Not synchronized, for the same reason as StringValue.
+            String string = this.string;
+            if (string == null) {
+                string = formatNumber(value);
+                this.string = string;
+            }
+            return string;
+        }
+        
+        public double toNumber() { return value; }
+        public Value evaluate(Context context) { return this; }
+        public double evaluateNumber(Context context) { return value; }
+
+        private final double value;
+        private String string;
+        
+        private static final int CACHE_MIN = -128;
+        private static final int CACHE_MAX = 1023;
+        private static final NumberValue[] CACHE =
+            new NumberValue[CACHE_MAX - CACHE_MIN + 1];
+        
+        static {
+            for (int i = 0; i < CACHE.length; i++) {
+                CACHE[i] = new NumberValue(i + CACHE_MIN);
+            }
+        }
+    }
+    
+    /**
+     * Unset variables are zero. Values are immutable, so they can all share
+     * this one.
+     */
+    private static final NumberValue ZERO = NumberValue.valueOf(0);
+    
+    /**
+     * A string value.
+     * 
+     * Building up a string a piece at a time, like "s = s + x" in a loop, is
+     * really common. If each step copied the whole string, that loop would
+     * take time proportional to the square of the string's length. Instead,
+     * the result of a concatenation is a slice of a shared, growable buffer.
+     * When the string being added to ends right where the buffer does (which
+     * it does, if nothing else has been added to the buffer since), the new
+     * text is just appended to the buffer, and the new string is a longer
+     * slice of it. Otherwise, the string is copied into a new buffer first.
+     * The text is only turned into a real Java string when something needs
+     * it, like comparing it.
+     * 
+     * String literals are never backed by a buffer.
+     */
+    public static class StringValue implements Value {
+        /**
+         * Gets a value for the given string. There's only ever one empty
+         * string value.
+         * 
+         * @param  value The string.
+         * @return       A value for the string.
+         */
+        public static StringValue valueOf(String value) {
+            if (value.isEmpty()) {
+                if (countValues) valueCacheHits.increment();
+                return EMPTY;
+            }
+            
+            if (countValues) valueCacheMisses.increment();
+            return new StringValue(value);
+        }
+        
+        private StringValue(String value) {
+            this.value = value;
+            this.buffer = null;
+            this.length = value.length();
+        }
+        
+        private StringValue(TextBuffer buffer, int length) {
+            this.buffer = buffer;
+            this.length = length;
+        }
+        
+        @Override public String toString() {
+            // HACK: This isn't synchronized. If two threads flatten the same
+            // string at the same time, they just both do the work. Strings are
+            // immutable, so either one sees a complete one.
+            String flat = value;
+            if (flat == null) {
+                flat = buffer.substring(length);
+                value = flat;
+            }
+            return flat;
+        }
+        
+        /**
+         * Converts the string to a number. Strings that came from "input"
+         * often get used in math over and over, so the number is only parsed
+         * the first time.
+         */
+        public double toNumber() {
+            // HACK: Not synchronized. Double is immutable, so another thread
+            // either sees the parsed number or parses it again itself.
+            Double number = this.number;
+            if (number == null) {
+                number = parseNumber(toString());
+                this.number = number;
+            }
+            return number;
+        }
+        
+        public Value evaluate(Context context) { return this; }
+        public double evaluateNumber(Context context) { return toNumber(); }
+        
+        /**
+         * Concatenates some text onto the end of this string.
+         * 
+         * @param  text The text to add.
+         * @return      A new string value with the text at the end.
+         */
+        public StringValue append(String text) {
+            if (buffer != null && buffer.append(length, text)) {
+                return new StringValue(buffer, length + text.length());
+            }
+            
+            // Copy this string into a new buffer, leaving room to grow.
+            TextBuffer copy = new TextBuffer(
+                Math.max(16, (length + text.length()) * 2));
+            if (buffer != null) {
+                buffer.copyTo(copy, length);
+            } else {
+                copy.append(0, value);
+            }
+            copy.append(length, text);
+            return new StringValue(copy, length + text.length());
+        }
+        
+        /**
+         * Adds this string to the end of a StringBuilder, without creating a
+         * Java string for it if it doesn't already have one.
+         * 
+         * @param builder The StringBuilder to append to.
+         */
+        public void appendTo(StringBuilder builder) {
+            String flat = value;
+            if (flat != null) {
+                builder.append(flat);
+            } else {
+                buffer.appendTo(builder, length);
+            }
+        }
+
+        private String value;
+        private final TextBuffer buffer;
+        private final int length;
+        private Double number;
+        
+        private static final StringValue EMPTY = new StringValue("");
+    }
+    
+    /**
+     * The shared buffer behind the strings built by concatenation. Every
+     * string using a buffer is a slice starting at the beginning of it.
+     * Characters are only ever added to the end, so a slice never changes.
+     * 
+     * Since a string could be concatenated on more than one thread at once
+     * (for example, if it's a constant), the methods are synchronized so that
+     * only one of them gets to append to the buffer. The others make a copy.
+     */
+    private static final class TextBuffer {
+        public TextBuffer(int capacity) {
+            chars = new char[capacity];
+        }
+        
+        /**
+         * Appends text to the end of the buffer, but only if the end is where
+         * it's expected to be.
+         * 
+         * @param  end  The length the buffer should have.
+         * @param  text The text to append.
+         * @return      True if the text was appended.
+         */
+        public synchronized boolean append(int end, String text) {
+            if (end != length) return false;
+            
+            if (length + text.length() > chars.length) {
+                chars = Arrays.copyOf(chars,
+                    Math.max(chars.length * 2, length + text.length()));
+            }
+            text.getChars(0, text.length(), chars, length);
+            length += text.length();
+            return true;
+        }
+        
+        /**
+         * Copies the start of this buffer into an empty one that has room for
+         * it.
+         */
+        public synchronized void copyTo(TextBuffer buffer, int end) {
+            System.arraycopy(chars, 0, buffer.chars, 0, end);
+            buffer.length = end;
+        }
+        
+        public synchronized String substring(int end) {
+            return new String(chars, 0, end);
+        }
+        
+        public synchronized void appendTo(StringBuilder builder, int end) {
+            builder.append(chars, 0, end);
+        }
+        
+        private char[] chars;
+        private int length;
+    }
+
+    /**
+     * Turns on counting how many values come from the caches in
+     * NumberValue.valueOf() and StringValue.valueOf(). It's off by default,
+     * since the counting itself takes time.
+     * 
+     * @param count Whether to count.
+     */
+    public static void setCountValues(boolean count) {
+        countValues = count;
+    }
+    
+    /**
+     * Gets how many values came from the cache while counting was on.
+     * 
+     * @return The number of cache hits.
+     */
+    public static long getValueCacheHits() {
+        return valueCacheHits.sum();
+    }
+    
+    /**
+     * Gets how many values had to be created while counting was on.
+     * 
+     * @return The number of cache misses.
+     */
+    public static long getValueCacheMisses() {
+        return valueCacheMisses.sum();
+    }
+    
+    private static volatile boolean countValues;
+    private static final LongAdder valueCacheHits = new LongAdder();
+    private static final LongAdder valueCacheMisses = new LongAdder();
+    
+    /**
+     * Converts a string to a number. This gives the same result as
+     * Double.parseDouble(), but whole numbers (which are most of the numbers
+     * in the average script) take a much faster path.
+     * 
+     * @param  text The string to parse.
+     * @return      The number.
+     * @throws      NumberFormatException if the string isn't a number.
+     */
+    private static double parseNumber(String text) {
+        // Any whole number with up to 15 digits fits in a double exactly.
+        int length = text.length();
+        int start = 0;
+        if (length > 0 &&
+            (text.charAt(0) == '-' || text.charAt(0) == '+')) {
+            start = 1;
+        }
+        
+        if (length > start && length - start <= 15) {
+            long whole = 0;
+            int i = start;
+            while (i < length) {
+                char c = text.charAt(i);
+                if (c < '0' || c > '9') break;
+                whole = whole * 10 + (c - '0');
+                i++;
+            }
+            
+            // Negate the double, not the long, so that "-0" is -0.0.
+            if (i == length) {
+                return (text.charAt(0) == '-') ? -(double)whole : whole;
+            }
+        }
+        
+        return Double.parseDouble(text);
+    }
+    
+    /**
+     * Converts a number to a string. This gives the same result as
+     * Double.toString(), but whole numbers (which are most of the numbers in
+     * the average script) take a much faster path.
+     * 
+     * @param  value The number to format.
+     * @return       The formatted number.
+     */
+    private static String formatNumber(double value) {
+        return appendNumber(new StringBuilder(24), value).toString();
+    }
+    
+    /**
+     * Formats a number straight onto the end of a StringBuilder.
+     * 
+     * @param  builder The StringBuilder to append to.
+     * @param  value   The number to format.
+     * @return         The StringBuilder.
+     */
+    private static StringBuilder appendNumber(StringBuilder builder,
+                                              double value) {
+        // Double.toString() switches to scientific notation at 10^7. Also
+        // make sure not to lose the sign of negative zero.
+        long whole = (long)value;
+        if (whole == value && Math.abs(whole) < 10000000 &&
+            Double.doubleToRawLongBits(value) != NEGATIVE_ZERO) {
+            return builder.append(whole).append(".0");
+        }
+        return builder.append(value);
+    }
+    
+    private static final long NEGATIVE_ZERO = Double.doubleToRawLongBits(-0.0);
+
+    // Interpreter -------------------------------------------------------------
+    
+    // Running a script is split in two. A Program is the parsed, linked, and
+    // type-checked script. It never changes once it's been built, so it can
+    // be shared freely: parse a script once, and run it as many times as you
+    // like, on as many threads as you like. Each run gets its own Context,
+    // which holds everything that changes while the script runs: the values
+    // of the variables, the current statement, and the output buffer.
+    //
+    // A context also says where input comes from and where output goes. By
+    // default that's the console, but a host program can hand it a supplier
+    // of input lines and a consumer of output text instead, and run lots of
+    // scripts in-process without any of them touching stdin or stdout.
+    
+    /**
+     * The different ways Jasic can run a program once it has been parsed.
+     */
+    public enum Engine {
+        /** Walk the AST, executing each statement node directly. */
+        TREE,
+        
+        /** Compile to bytecode and run it on the virtual machine. */
+        VM,
+        
+        /** Compile to a JVM class and let HotSpot optimize it. */
+        JVM
+    }
+    
+    /**
+     * A parsed script that's ready to run. Building one binds the jumps to
+     * their labels, gives every variable a slot, and works out which variables
+     * only hold numbers. After that, nothing in it changes, except that the
+     * bytecode and JVM class are compiled the first time a run asks for them.
+     * 
+     * HACK: The AST nodes have a few non-final fields (slots, jump targets,
+     * and types) that are filled in by the constructor. The program is only
+     * reachable through its final fields, so other threads always see them
+     * filled in. The one place they're written again is a Session, which
+     * builds each new program out of the same statements as the last one.
+     * That's safe because a Session's programs only run on the thread using
+     * the Session, and once it starts building a new program, it never runs
+     * the old one again.
+     */
+    public static final class Program {
+        /**
+         * Tokenizes and parses a script.
+         * 
+         * @param  source A string containing the source code of a .jas script.
+         * @return        The parsed program.
+         */
+        public static Program parse(String source) {
+            return parse(new StringReader(source));
+        }
+        
+        /**
+         * Tokenizes and parses a script read from the given source. The parser
+         * pulls tokens from the lexer as it needs them, so the script never
+         * needs to be in memory all at once.
+         * 
+         * @param  source The source code of a .jas script.
+         * @return        The parsed program.
+         */
+        public static Program parse(Reader source) {
+            Map<String, Integer> labels = new HashMap<String, Integer>();
+            Parser parser = new Parser(new Tokens(new Lexer(source)));
+            return new Program(parser.parse(labels), labels);
+        }
+        
+        /**
+         * Loads a script from a file, using the cached parse if there is a
+         * fresh one.
+         * 
+         * @param  path     Path to the script.
+         * @param  charset  The encoding of the script.
+         * @param  useCache Whether to read and write the cache.
+         * @return          The parsed program.
+         * @throws          IOException
+         */
+        public static Program load(String path, Charset charset,
+                                   boolean useCache) throws IOException {
+            return loadProgram(path, charset, useCache);
+        }
+        
+        private Program(List<Statement> statements,
+                        Map<String, Integer> labels) {
+            // Bind jumps to labels and variable names to slots.
+            Map<String, Integer> slots = new HashMap<String, Integer>();
+            link(statements, labels);
+            resolve(statements, slots);
+            
+            // Simplify the statements, then bind the new ones.
+            statements = optimize(statements, labels,
+                                  inferTypes(statements, slots.size()));
+            link(statements, labels);
+            resolve(statements, slots);
+            
+            this.statements = statements;
+            this.labels = new HashMap<String, Integer>(labels);
+            this.slots = slots;
+            this.numericSlots = inferTypes(statements, slots.size());
+            this.fused = fuse(statements, numericSlots);
+        }
+        
+        /**
+         * Creates a fresh set of variables to run the program with.
+         * 
+         * @return A new context with every variable unset.
+         */
+        public Context newContext() {
+            return new Context(this);
+        }
+        
+        /**
+         * Creates a context that carries on from a snapshot saved by
+         * Context.save(). The snapshot must be of this same program.
+         * 
+         * @param  path Path to the snapshot file.
+         * @return      A context with the saved variables, ready to resume().
+         * @throws      IOException if the snapshot can't be read, or is of a
+         *              different program.
+         */
+        public Context restore(String path) throws IOException {
+            Context context = new Context(this);
+            readSnapshot(Paths.get(path), context);
+            return context;
+        }
+        
+        /**
+         * Gets a hash that identifies the program, for snapshots. It's made
+         * from the statements themselves, so the same script gets the same
+         * hash in any JVM.
+         */
+        private synchronized byte[] fingerprint() {
+            if (fingerprint == null) fingerprint = hashProgram(this);
+            return fingerprint;
+        }
+        
+        /**
+         * Gets the program compiled to bytecode, compiling it the first time
+         * it's needed.
+         * 
+         * @return The bytecode, or null if the program can't be compiled.
+         */
+        private Bytecode bytecode() {
+            Bytecode result = bytecode;
+            if (result != null || noBytecode) return result;
+            
+            synchronized (this) {
+                if (bytecode == null && !noBytecode) {
+                    try {
+                        bytecode = new Compiler(this).compile();
+                    } catch (UnsupportedOperationException ex) {
+                        noBytecode = true;
+                    }
+                }
+                return bytecode;
+            }
+        }
+        
+        /**
+         * Gets the program compiled to a JVM method that takes a context and
+         * runs the program in it, compiling it the first time it's needed.
+         * 
+         * @return The method, or null if the program can't be compiled.
+         */
+        private MethodHandle compiled() {
+            MethodHandle result = compiled;
+            if (result != null || notCompiled) return result;
+            
+            synchronized (this) {
+                if (compiled == null && !notCompiled) {
+                    try {
+                        compiled = compileClass(this);
+                    } catch (UnsupportedOperationException ex) {
+                        notCompiled = true;
+                    }
+                }
+                return compiled;
+            }
+        }
+        
+        private final List<Statement> statements;
+        private final List<Statement> fused;
+        private final Map<String, Integer> labels;
+        private final Map<String, Integer> slots;
+        private final boolean[] numericSlots;
+        
+        private volatile Bytecode bytecode;
+        private volatile boolean noBytecode;
+        private volatile MethodHandle compiled;
+        private volatile boolean notCompiled;
+        private byte[] fingerprint;
+    }
+    
+    /**
+     * The state of one run of a program. The statements keep track of the
+     * current line in a field here, which lets "goto" and "if then" do flow
+     * control by simply setting the index of the current statement.
+     * 
+     * A context isn't thread-safe. Use a separate one for each thread.
+     */
+    public static class Context {
+        private Context(Program program) {
+            this.program = program;
+            variables = new Value[program.slots.size()];
+            numbers = new double[program.slots.size()];
+            arrays = new ArrayData[program.slots.size()];
+            output = new StringBuilder();
+            outputLimit = 8192;
+            in = CONSOLE_INPUT;
+            out = CONSOLE_OUTPUT;
+        }
+        
+        /**
+         * Creates a context for a program that carries on from where another
+         * context left off, with the same settings and every variable and
+         * array set the way it was. The programs may have given the names
+         * different slots, or inferred different types for them, so this goes
+         * by name.
+         */
+        private Context(Program program, Context previous) {
+            this(program);
+            outputLimit = previous.outputLimit;
+            in = previous.in;
+            out = previous.out;
+            
+            Program old = previous.program;
+            for (Map.Entry<String, Integer> entry : old.slots.entrySet()) {
+                Integer slot = program.slots.get(entry.getKey());
+                if (slot == null) continue;
+                
+                int oldSlot = entry.getValue();
+                Value value = previous.variables[oldSlot];
+                if (old.numericSlots[oldSlot]) {
+                    value = NumberValue.valueOf(previous.numbers[oldSlot]);
+                }
+                
+                if (program.numericSlots[slot]) {
+                    numbers[slot] = (value != null) ? value.toNumber() : 0;
+                } else {
+                    variables[slot] = value;
+                }
+                arrays[slot] = previous.arrays[oldSlot];
+            }
+        }
+        
+        /**
+         * Sets where "input" statements read from. Each time the program asks
+         * for input, the supplier is asked for the next line. It should return
+         * null when there's no more input, which leaves the variable alone.
+         * The default reads lines from the console.
+         * 
+         * @param in The source of input lines.
+         */
+        public void setInput(Supplier<String> in) {
+            this.in = in;
+        }
+        
+        /**
+         * Sets where printed output goes. Output is buffered, so the consumer
+         * is given a chunk of text at a time, each ending with a line
+         * separator. It's always given everything printed by the time run()
+         * returns. The default writes to the console.
+         * 
+         * @param out The destination for output.
+         */
+        public void setOutput(Consumer<String> out) {
+            this.out = out;
+        }
+        
+        /**
+         * Sets how many characters of output can be buffered before they are
+         * written to the console. Zero writes every line as soon as it's
+         * printed.
+         * 
+         * @param limit The buffer size in characters.
+         */
+        public void setOutputLimit(int limit) {
+            outputLimit = limit;
+        }
+        
+        /**
+         * This is where the magic happens. This runs the program on the chosen
+         * engine. For the tree engine, that just means executing each
+         * statement in turn.
+         *
+         * In an interpreter that didn't mix the interpretation logic in with
+         * the AST node classes, this would be doing a lot more work.
+         * 
+         * @param engine The execution engine to use.
+         */
+        public void run(Engine engine) {
+            try {
+                if (profiler != null) {
+                    runProfiled();
+                    return;
+                }
+                
+                // If the chosen engine can't handle something in the program,
+                // fall back to walking the tree.
+                if (engine == Engine.VM) {
+                    Bytecode bytecode = program.bytecode();
+                    if (bytecode != null) {
+                        Jasic.run(bytecode, this);
+                        return;
+                    }
+                } else if (engine == Engine.JVM) {
+                    MethodHandle compiled = program.compiled();
+                    if (compiled != null) {
+                        runCompiled(compiled);
+                        return;
+                    }
+                }
+            
+                interpret(0);
+            } finally {
+                // Whatever happens, show everything that was printed.
+                flushOutput();
+            }
+        }
+        
+        /**
+         * Saves a snapshot of the run: which statement it's on, and the value
+         * of every variable and array. Program.restore() can pick it up from
+         * there, even in another JVM. The context must not be running.
+         * 
+         * @param  path Path to the snapshot file to write.
+         * @throws      IOException
+         */
+        public void save(String path) throws IOException {
+            writeSnapshot(Paths.get(path), this);
+        }
+        
+        /**
+         * Carries on running from the statement the context stopped at, like
+         * after Program.restore(). This always walks the tree, since that's
+         * the only engine that can start partway through a program.
+         */
+        public void resume() {
+            try {
+                interpret(currentStatement);
+            } finally {
+                flushOutput();
+            }
+        }
+        
+        /**
+         * Walks the tree for a while, for a Scheduler. This stops at the
+         * first jump backwards after the budget runs out, or when the script
+         * is waiting for input. Jumping backwards is the only way a script
+         * can run for long, so that's the only place that needs to check.
+         * 
+         * @param  budget Roughly how many statements to run.
+         * @return        True if the script finished.
+         */
+        private boolean interpretSlice(int budget) {
+            List<Statement> statements = program.fused;
+            int count = 0;
+            try {
+                while (currentStatement < statements.size()) {
+                    int thisStatement = currentStatement;
+                    currentStatement++;
+                    statements.get(thisStatement).execute(this);
+                    count++;
+                    
+                    if (currentStatement <= thisStatement &&
+                        (count >= budget || waiting)) {
+                        return false;
+                    }
+                }
+                return true;
+            } finally {
+                steps += count;
+            }
+        }
+        
+        /**
+         * Determines whether an "input" statement can read without waiting.
+         * Outside of a Scheduler, reads are allowed to block, so the answer
+         * is always yes.
+         */
+        private boolean inputReady() {
+            if (script == null || script.ready()) return true;
+            waiting = true;
+            return false;
+        }
+        
+        /**
+         * Walks the tree, starting at the given statement, until we're done.
+         */
+        private void interpret(int start) {
+            List<Statement> statements = program.fused;
+            currentStatement = start;
+            while (currentStatement < statements.size()) {
+                int thisStatement = currentStatement;
+                currentStatement++;
+                statements.get(thisStatement).execute(this);
+            }
+        }
+        
+        /**
+         * Looks up the current value of a variable by name. This is mainly
+         * useful for debugging and for code hosting the interpreter, since the
+         * statements themselves go straight to the slot.
+         * 
+         * @param  name The name of the variable.
+         * @return      The variable's value, or null if it has never been set.
+         */
+        public Value getVariable(String name) {
+            Integer slot = program.slots.get(name);
+            if (slot == null) return null;
+            if (program.numericSlots[slot]) {
+                return NumberValue.valueOf(numbers[slot]);
+            }
+            return variables[slot];
+        }
+        
+        /**
+         * Turns on profiling for this context. Runs will walk the tree, and
+         * record what they do in the profiler.
+         * 
+         * @param profiler A profiler for this context's program, or null to
+         *                 turn profiling off.
+         */
+        public void setProfiler(Profiler profiler) {
+            this.profiler = profiler;
+        }
+        
+        /**
+         * Walks the tree like run() does, but times each statement.
+         */
+        private void runProfiled() {
+            List<Statement> statements = program.statements;
+            long[] counts = profiler.counts;
+            long[] nanos = profiler.nanos;
+            
+            currentStatement = 0;
+            long last = System.nanoTime();
+            while (currentStatement < statements.size()) {
+                int thisStatement = currentStatement;
+                currentStatement++;
+                statements.get(thisStatement).execute(this);
+                
+                long now = System.nanoTime();
+                counts[thisStatement]++;
+                nanos[thisStatement] += now - last;
+                last = now;
+            }
+        }
+        
+        private void runCompiled(MethodHandle compiled) {
+            try {
+                compiled.invokeExact(this);
+            } catch (RuntimeException ex) {
+                throw ex;
+            } catch (Error ex) {
+                throw ex;
+            } catch (Throwable ex) {
+                throw new Error(ex);
+            }
+        }
+        
+        /**
+         * Prints a value on its own line.
+         * 
+         * HACK: Output isn't written right away. Lots of little writes to the
+         * console are slow, so it's collected in a buffer that's written out
+         * when it gets full, when the program asks for input, and when the
+         * program ends.
+         * 
+         * @param value The value to print.
+         */
+        private void print(Value value) {
+            if (value instanceof NumberValue) {
+                printNumber(value.toNumber());
+            } else if (value instanceof StringValue) {
+                ((StringValue)value).appendTo(output);
+                endLine();
+            } else {
+                output.append(value.toString());
+                endLine();
+            }
+        }
+        
+        /**
+         * Prints a number on its own line.
+         * 
+         * @param value The number to print.
+         */
+        private void printNumber(double value) {
+            appendNumber(output, value);
+            endLine();
+        }
+        
+        private void endLine() {
+            output.append(LINE_SEPARATOR);
+            if (output.length() >= outputLimit) flushOutput();
+        }
+        
+        /**
+         * Writes any buffered output to the output consumer.
+         */
+        private void flushOutput() {
+            if (output.length() == 0) return;
+            
+            out.accept(output.toString());
+            output.setLength(0);
+        }
+        
+        /**
+         * Reads a line of input from the user and converts it to a value.
+         * Numeric input is stored as a number, anything else as a string.
+         * 
+         * @return The value read, or null if the read failed.
+         */
+        private Value readInput() {
+            // Make sure the user sees any prompt before we wait on them.
+            flushOutput();
+            
+            String input = in.get();
+            if (input == null) return null;
+            
+            // Store it as a number if possible, otherwise use a string.
+            try {
+                double value = parseNumber(input);
+                return NumberValue.valueOf(value);
+            } catch (NumberFormatException e) {
+                return StringValue.valueOf(input);
+            }
+        }
+        
+        private final Program program;
+        private Value[] variables;
+        private double[] numbers;
+        private ArrayData[] arrays;
+        private int currentStatement;
+        
+        private final StringBuilder output;
+        private int outputLimit;
+        private Supplier<String> in;
+        private Consumer<String> out;
+        private Profiler profiler;
+        
+        /** The script this is running as, if it's on a Scheduler. */
+        private Script script;
+        
+        /** Set when the script has stopped to wait for input. */
+        private boolean waiting;
+        
+        /** How many statements have run in slices so far. */
+        private long steps;
+    }
+    
+    private static final String LINE_SEPARATOR = System.lineSeparator();
+    
+    /**
+     * Reads lines of input from the console. Every context shares the same
+     * reader, so that a line one of them buffers isn't lost to the others.
+     */
+    private static class ConsoleInput implements Supplier<String> {
+        public synchronized String get() {
+            if (lineIn == null) {
+                lineIn = new BufferedReader(new InputStreamReader(System.in));
+            }
+            
+            try {
+                return lineIn.readLine();
+            } catch (IOException e1) {
+                // HACK: Just ignore the problem.
+                return null;
+            }
+        }
+        
+        private BufferedReader lineIn;
+    }
+    
+    /**
+     * Writes output to the console.
+     */
+    private static class ConsoleOutput implements Consumer<String> {
+        public void accept(String text) {
+            System.out.append(text);
+            System.out.flush();
+        }
+    }
+    
+    private static final Supplier<String> CONSOLE_INPUT = new ConsoleInput();
+    private static final Consumer<String> CONSOLE_OUTPUT = new ConsoleOutput();
+    
+    /**
+     * Constructs a new Jasic instance. This is a simple way to run scripts
+     * that holds on to the settings and the context of the last run, so that
+     * its variables can be looked up afterwards. To run the same script more
+     * than once, or on more than one thread, parse it into a Program instead.
+     */
+    public Jasic() {
+        engine = Engine.TREE;
+        outputLimit = 8192;
+        in = CONSOLE_INPUT;
+        out = CONSOLE_OUTPUT;
+    }
+
+    /**
+     * Chooses how programs are run. The default is to walk the AST.
+     * 
+     * @param engine The execution engine to use.
+     */
+    public void setEngine(Engine engine) {
+        this.engine = engine;
+    }
+
+    /**
+     * Sets how many characters of output can be buffered before they are
+     * written to the console. Zero writes every line as soon as it's printed.
+     * 
+     * @param limit The buffer size in characters.
+     */
+    public void setOutputLimit(int limit) {
+        outputLimit = limit;
+    }
+
+    /**
+     * Sets where "input" statements read from. See Context.setInput().
+     * 
+     * @param in The source of input lines.
+     */
+    public void setInput(Supplier<String> in) {
+        this.in = in;
+    }
+
+    /**
+     * Sets where printed output goes. See Context.setOutput().
+     * 
+     * @param out The destination for output.
+     */
+    public void setOutput(Consumer<String> out) {
+        this.out = out;
+    }
+
+    /**
+     * Parses a script and runs it.
+     * 
+     * @param source A string containing the source code of a .jas script to
+     *               interpret.
+     */
+    public void interpret(String source) {
+        interpret(new StringReader(source));
+    }
+    
+    /**
+     * Interprets a script read from the given source. The script is tokenized
+     * and parsed as it's read, so it never needs to be in memory all at once.
+     * 
+     * @param source The source code of a .jas script to interpret.
+     */
+    public void interpret(Reader source) {
+        run(Program.parse(source));
+    }
+    
+    /**
+     * Runs an already-parsed program in a new context.
+     * 
+     * @param program The program to run.
+     */
+    public void run(Program program) {
+        context = program.newContext();
+        context.setOutputLimit(outputLimit);
+        context.setInput(in);
+        context.setOutput(out);
+        context.run(engine);
+    }
+    
+    /**
+     * Looks up the value a variable had at the end of the last run.
+     * 
+     * @param  name The name of the variable.
+     * @return      The variable's value, or null if it has never been set.
+     */
+    public Value getVariable(String name) {
+        if (context == null) return null;
+        return context.getVariable(name);
+    }
+    
+    private Engine engine;
+    private int outputLimit;
+    private Supplier<String> in;
+    private Consumer<String> out;
+    private Context context;
+    
+    // Sessions ----------------------------------------------------------------
+    
+    // A REPL (read-eval-print loop) lets you type in a script a few lines at a
+    // time and see what each one does. Re-running the whole script after each
+    // line would be slow, and would run everything before it again. Instead,
+    // a Session only tokenizes and parses the lines that were just entered,
+    // adds the new statements and labels to the end of the ones it already
+    // has, and runs just the new statements, using the variables left over
+    // from last time.
+    //
+    // Since a Program can't change once it's made, each entry does make a new
+    // one from all of the statements so far. That redoes the linking,
+    // resolving, and type inference, but those are a quick pass over the
+    // statements that are already parsed. It also writes the new slots, jump
+    // targets, and types into the same nodes, so the old program can't be
+    // run again after that. A "goto" or "if" can still jump back to a label
+    // from an earlier entry, and everything from there to the end will run
+    // again, just as it would in a script.
+    //
+    // HACK: Sessions always walk the tree. The bytecode and JVM engines can
+    // only start a program from the top.
+    
+    /**
+     * A script that's entered a piece at a time, like in a REPL.
+     */
+    public static final class Session {
+        public Session() {
+            statements = new ArrayList<Statement>();
+            labels = new HashMap<String, Integer>();
+            committedLabels = new HashMap<String, Integer>();
+            context = new Program(new ArrayList<Statement>(),
+                new HashMap<String, Integer>()).newContext();
+        }
+        
+        /**
+         * Sets where "input" statements read from. See Context.setInput().
+         * 
+         * @param in The source of input lines.
+         */
+        public void setInput(Supplier<String> in) {
+            context.setInput(in);
+        }
+        
+        /**
+         * Sets where printed output goes. See Context.setOutput().
+         * 
+         * @param out The destination for output.
+         */
+        public void setOutput(Consumer<String> out) {
+            context.setOutput(out);
+        }
+        
+        /**
+         * Parses some more of the script, and runs it if it's complete. An
+         * entry that opens a "for" loop without closing it isn't complete:
+         * its statements are held on to until a later entry has the "next".
+         * 
+         * If the entry doesn't parse or link, it's thrown away along with any
+         * lines being held on to, and the error (or exception) is thrown.
+         * Errors while running are thrown too, but the statements stay, since
+         * they (or some of them) have run.
+         * 
+         * @param  source The lines of code to add.
+         * @return        True if the code ran, or false if more lines are
+         *                needed to finish it.
+         */
+        public boolean enter(String source) {
+            Program program;
+            try {
+                Map<String, Integer> newLabels =
+                    new HashMap<String, Integer>();
+                Parser parser = new Parser(new Tokens(new Lexer(
+                    new StringReader(source))));
+                List<Statement> parsed = parser.parse(newLabels);
+                
+                // The new labels are numbered from the start of the entry.
+                int base = statements.size();
+                for (Map.Entry<String, Integer> label : newLabels.entrySet()) {
+                    labels.put(label.getKey(), base + label.getValue());
+                }
+                
+                for (Statement statement : parsed) {
+                    if (statement instanceof ForStatement) openLoops++;
+                    if (statement instanceof NextStatement) openLoops--;
+                }
+                statements.addAll(parsed);
+                if (openLoops > 0) return false;
+                
+                program = new Program(new ArrayList<Statement>(statements),
+                                      new HashMap<String, Integer>(labels));
+            } catch (Error ex) {
+                rollBack();
+                throw ex;
+            } catch (RuntimeException ex) {
+                rollBack();
+                throw ex;
+            }
+            
+            int start = ran;
+            ran = statements.size();
+            committedLabels.clear();
+            committedLabels.putAll(labels);
+            
+            context = new Context(program, context);
+            try {
+                context.interpret(start);
+            } finally {
+                context.flushOutput();
+            }
+            return true;
+        }
+        
+        /**
+         * Looks up the current value of a variable.
+         * 
+         * @param  name The name of the variable.
+         * @return      The variable's value, or null if it has never been set.
+         */
+        public Value getVariable(String name) {
+            return context.getVariable(name);
+        }
+        
+        /**
+         * Throws away everything entered since the last entry that ran.
+         */
+        private void rollBack() {
+            statements.subList(ran, statements.size()).clear();
+            labels.clear();
+            labels.putAll(committedLabels);
+            openLoops = 0;
+        }
+        
+        /** Every statement entered so far, as parsed. */
+        private final List<Statement> statements;
+        private final Map<String, Integer> labels;
+        
+        /** The labels as of the last entry that ran. */
+        private final Map<String, Integer> committedLabels;
+        
+        /** The number of statements that have been run. */
+        private int ran;
+        
+        /** How many "for" loops are waiting for their "next". */
+        private int openLoops;
+        private Context context;
+    }
+    
+    /**
+     * Runs a REPL on the console until it runs out of input.
+     */
+    private static void repl() {
+        Session session = new Session();
+        boolean complete = true;
+        while (true) {
+            System.out.print(complete ? "> " : "... ");
+            System.out.flush();
+            
+            String line = CONSOLE_INPUT.get();
+            if (line == null) break;
+            
+            try {
+                complete = session.enter(line);
+            } catch (Error ex) {
+                System.out.println("Error: " + ex.getMessage());
+                complete = true;
+            } catch (RuntimeException ex) {
+                System.out.println("Error: " + ex);
+                complete = true;
+            }
+        }
+        
+        System.out.println();
+    }
+    
+    // Scheduling --------------------------------------------------------------
+    
+    // Running a script ties up a thread until it ends, and a script that's
+    // waiting on "input" just sits there blocking one. That's fine for one
+    // script, but a server hosting thousands of interactive scripts, most of
+    // them idle, can't give each its own thread.
+    //
+    // A Scheduler runs them all on a small pool of threads instead. Each turn
+    // a script gets runs a slice of it: a budget of statements. When the
+    // budget runs out, the script stops at its next backwards jump, since
+    // that's the only way it can keep going for long, and goes to the back of
+    // the line so the others get a turn. When it reaches an "input" statement
+    // and there's no line waiting for it, it stops right there, and doesn't
+    // get another turn until the host gives it one. Either way, all of its
+    // state is in its Context, so there's nothing to save: the next slice
+    // just picks up where the last one stopped.
+    //
+    // HACK: Slices always walk the tree, since the compiled engines can't stop
+    // partway through.
+    
+    /**
+     * Runs many scripts at once by taking turns on a few threads.
+     */
+    public static final class Scheduler {
+        /**
+         * Creates a scheduler.
+         * 
+         * @param threads How many scripts can run at the same time.
+         * @param slice   About how many statements a script runs each turn.
+         */
+        public Scheduler(int threads, int slice) {
+            executor = Executors.newFixedThreadPool(threads);
+            this.slice = slice;
+        }
+        
+        /**
+         * Starts running a script. The context's output settings are used,
+         * but its input will come from the Script.
+         * 
+         * @param  context   A new context for the program to run.
+         * @param  stepLimit The most statements the script can run before it
+         *                   is stopped with an error, or 0 for no limit.
+         * @return           The running script.
+         */
+        public Script start(Context context, long stepLimit) {
+            Script script = new Script(this, context, stepLimit);
+            context.script = script;
+            context.setInput(script.input);
+            submit(script);
+            return script;
+        }
+        
+        /**
+         * Stops the threads once every script that has a turn coming has
+         * finished it. Scripts waiting on input will never run again.
+         */
+        public void shutdown() {
+            executor.shutdown();
+        }
+        
+        private void submit(final Script script) {
+            executor.execute(new Runnable() {
+                public void run() {
+                    script.runSlice();
+                }
+            });
+        }
+        
+        private final ExecutorService executor;
+        private final int slice;
+    }
+    
+    /**
+     * A script running on a Scheduler. This is how the host sends it input,
+     * and finds out when it ends.
+     */
+    public static final class Script {
+        private Script(Scheduler scheduler, Context context, long stepLimit) {
+            this.scheduler = scheduler;
+            this.context = context;
+            this.stepLimit = stepLimit;
+            lines = new ArrayDeque<String>();
+            result = new CompletableFuture<Context>();
+            input = new Supplier<String>() {
+                public String get() {
+                    synchronized (Script.this) {
+                        return lines.poll();
+                    }
+                }
+            };
+        }
+        
+        /**
+         * Gives the script a line of input. If it's waiting for input, it
+         * gets a turn to carry on.
+         * 
+         * @param line The line of input.
+         */
+        public void offer(String line) {
+            synchronized (this) {
+                lines.add(line);
+                if (!parked) return;
+                parked = false;
+            }
+            scheduler.submit(this);
+        }
+        
+        /**
+         * Says there's no more input. From now on, "input" statements with no
+         * line left to read leave their variable alone.
+         */
+        public void close() {
+            synchronized (this) {
+                closed = true;
+                if (!parked) return;
+                parked = false;
+            }
+            scheduler.submit(this);
+        }
+        
+        /**
+         * Gets the result of the script. It completes with the script's
+         * context, so its variables can be looked up, or with the error that
+         * stopped it.
+         * 
+         * @return The eventual result.
+         */
+        public CompletableFuture<Context> getResult() {
+            return result;
+        }
+        
+        /**
+         * Saves a snapshot of the script the next time it stops between
+         * turns, or right away if it's waiting for input. See Context.save().
+         * 
+         * @param  path Path to the snapshot file to write.
+         * @return      Completes once the snapshot is saved, or with the
+         *              error if it can't be.
+         */
+        public CompletableFuture<Void> checkpoint(String path) {
+            CompletableFuture<Void> saved = new CompletableFuture<Void>();
+            synchronized (this) {
+                if (result.isDone()) {
+                    saved.completeExceptionally(
+                        new IllegalStateException("Script has ended."));
+                } else if (checkpoint != null) {
+                    saved.completeExceptionally(new IllegalStateException(
+                        "Script is already saving a snapshot."));
+                } else {
+                    checkpointPath = path;
+                    checkpoint = saved;
+                    
+                    // A parked script isn't running, so it can be saved now.
+                    if (parked) save();
+                }
+            }
+            return saved;
+        }
+        
+        private synchronized boolean ready() {
+            return closed || !lines.isEmpty();
+        }
+        
+        /**
+         * Ends the script, and any snapshot it was going to save.
+         * 
+         * @param error The error that stopped the script, or null if it
+         *              finished.
+         */
+        private synchronized void finish(Throwable error) {
+            if (error == null) {
+                result.complete(context);
+                error = new IllegalStateException("Script has ended.");
+            } else {
+                result.completeExceptionally(error);
+            }
+            
+            if (checkpoint != null) checkpoint.completeExceptionally(error);
+            checkpoint = null;
+            checkpointPath = null;
+        }
+        
+        /**
+         * Writes the pending snapshot, if there is one. Must be called while
+         * the script isn't running a slice.
+         */
+        private synchronized void save() {
+            if (checkpoint == null) return;
+            try {
+                context.save(checkpointPath);
+                checkpoint.complete(null);
+            } catch (IOException ex) {
+                checkpoint.completeExceptionally(ex);
+            }
+            checkpoint = null;
+            checkpointPath = null;
+        }
+        
+        /**
+         * Runs one turn of the script, then either finishes it, puts it at
+         * the back of the line, or parks it until it gets some input.
+         */
+        private void runSlice() {
+            try {
+                context.waiting = false;
+                int budget = scheduler.slice;
+                if (stepLimit > 0) {
+                    budget = (int)Math.min(budget, stepLimit - context.steps);
+                }
+                
+                if (context.interpretSlice(budget)) {
+                    context.flushOutput();
+                    finish(null);
+                    return;
+                }
+                
+                // Between turns is a safe place to take a snapshot.
+                save();
+                
+                if (stepLimit > 0 && context.steps >= stepLimit) {
+                    throw new Error("Script ran more than " + stepLimit +
+                            " steps.");
+                }
+            } catch (Throwable ex) {
+                context.flushOutput();
+                finish(ex);
+                return;
+            }
+            
+            if (context.waiting) {
+                // Show any prompt before waiting.
+                context.flushOutput();
+                synchronized (this) {
+                    // Input may have shown up since the script checked.
+                    if (!ready()) {
+                        parked = true;
+                        return;
+                    }
+                }
+            }
+            
+            scheduler.submit(this);
+        }
+        
+        private final Scheduler scheduler;
+        private final Context context;
+        private final long stepLimit;
+        private final Deque<String> lines;
+        private final CompletableFuture<Context> result;
+        private final Supplier<String> input;
+        private boolean closed;
+        
+        /** True while the script is waiting for input and has no turn. */
+        private boolean parked;
+        
+        /** A snapshot that's been asked for but not saved yet. */
+        private CompletableFuture<Void> checkpoint;
+        private String checkpointPath;
+    }
+    
+    // Profiling ---------------------------------------------------------------
+    
+    // When a script is slow, the first question is where the time goes. A
+    // Profiler answers that without attaching a JVM profiler (which would
+    // only show time spent in the interpreter's own methods, not in the
+    // script). The interpreter loop counts how many times each statement runs
+    // and how long it takes, and operators count how many new values they
+    // create. Results that come from the value caches don't count, and
+    // neither do the ones that stay unboxed as doubles.
+    // Jasic has no functions, so the closest thing to a "call stack" for a
+    // statement is the label it comes after. Statements are reported as the
+    // label plus how many statements after it they are, like "loop+2".
+    //
+    // HACK: Profiling always walks the tree, since that's the only engine that
+    // goes through the interpreter loop.
+    
+    /**
+     * Collects execution counts and timings for one program. Pass it to
+     * Context.setProfiler() before running. A profiler can be used for more
+     * than one run to add up their results, but not for runs happening at the
+     * same time.
+     */
+    public static final class Profiler {
+        public Profiler(Program program) {
+            counts = new long[program.statements.size()];
+            nanos = new long[program.statements.size()];
+            
+            // Work out which label each statement comes after. If more than
+            // one label points to the same statement, pick the first
+            // alphabetically so that the report doesn't depend on hash order.
+            owners = new String[counts.length];
+            offsets = new int[counts.length];
+            String[] starts = new String[counts.length + 1];
+            for (Map.Entry<String, Integer> label :
+                    program.labels.entrySet()) {
+                String start = starts[label.getValue()];
+                if (start == null || label.getKey().compareTo(start) < 0) {
+                    starts[label.getValue()] = label.getKey();
+                }
+            }
+            
+            String owner = "(start)";
+            int offset = 0;
+            for (int i = 0; i < counts.length; i++) {
+                if (starts[i] != null) {
+                    owner = starts[i];
+                    offset = 0;
+                }
+                owners[i] = owner;
+                offsets[i] = offset++;
+            }
+            
+            // Number the operators, and find the statement each one is in.
+            for (int i = 0; i < counts.length; i++) {
+                Statement statement = program.statements.get(i);
+                if (statement instanceof AssignStatement) {
+                    findOperators(((AssignStatement)statement).value, i);
+                } else if (statement instanceof PrintStatement) {
+                    findOperators(((PrintStatement)statement).expression, i);
+                } else if (statement instanceof IfThenStatement) {
+                    findOperators(((IfThenStatement)statement).condition, i);
+                } else if (statement instanceof ForStatement) {
+                    ForStatement loop = (ForStatement)statement;
+                    findOperators(loop.start, i);
+                    findOperators(loop.limit, i);
+                    findOperators(loop.step, i);
+                } else if (statement instanceof DimStatement) {
+                    findOperators(((DimStatement)statement).size, i);
+                } else if (statement instanceof ArrayAssignStatement) {
+                    ArrayAssignStatement assign =
+                        (ArrayAssignStatement)statement;
+                    findOperators(assign.index, i);
+                    findOperators(assign.value, i);
+                }
+            }
+            allocations = new long[operators.size()];
+        }
+        
+        /**
+         * Prints the statements and labels that took the most time, and the
+         * operators that created the most new values.
+         * 
+         * @param out Where to print the report.
+         */
+        public void report(PrintStream out) {
+            long total = 0;
+            for (long time : nanos) total += time;
+            
+            // Add up the statements under each label.
+            Map<String, long[]> labels = new HashMap<String, long[]>();
+            for (int i = 0; i < counts.length; i++) {
+                long[] label = labels.get(owners[i]);
+                if (label == null) {
+                    label = new long[2];
+                    labels.put(owners[i], label);
+                }
+                
+                // A label runs once each time its first statement does.
+                if (offsets[i] == 0) label[0] += counts[i];
+                label[1] += nanos[i];
+            }
+            
+            List<String> names = new ArrayList<String>();
+            List<long[]> rows = new ArrayList<long[]>();
+            for (int i = 0; i < counts.length; i++) {
+                names.add(location(i));
+                rows.add(new long[] { counts[i], nanos[i] });
+            }
+            table(out, "Statement", names, rows, total);
+            
+            names.clear();
+            rows.clear();
+            for (Map.Entry<String, long[]> label : labels.entrySet()) {
+                names.add(label.getKey());
+                rows.add(label.getValue());
+            }
+            table(out, "Label", names, rows, total);
+            
+            // Allocating operators, most allocations first.
+            Integer[] order = new Integer[allocations.length];
+            for (int i = 0; i < order.length; i++) order[i] = i;
+            Arrays.sort(order, new Comparator<Integer>() {
+                public int compare(Integer a, Integer b) {
+                    return Long.compare(allocations[b], allocations[a]);
+                }
+            });
+            
+            out.println(String.format("%-24s %14s", "Operator",
+                                      "Allocations"));
+            for (int i = 0; i < Math.min(order.length, REPORT_LIMIT); i++) {
+                int index = order[i];
+                if (allocations[index] == 0) break;
+                OperatorExpression operator = operatorList.get(index);
+                out.println(String.format("%-24s %14d",
+                    location(operatorStatements.get(index)) + " '" +
+                    operator.operator + "'", allocations[index]));
+            }
+            out.println();
+        }
+        
+        /**
+         * Writes the time spent in each statement in the "collapsed stack"
+         * format that flame graph tools read: one line per statement, with
+         * the frames separated by semicolons, followed by the time in
+         * nanoseconds.
+         * 
+         * @param out  Where to write the stacks.
+         * @param root The name of the bottom frame, usually the script.
+         */
+        public void writeStacks(Writer out, String root) throws IOException {
+            for (int i = 0; i < counts.length; i++) {
+                if (nanos[i] == 0) continue;
+                out.write(root + ";" + owners[i] + ";" + location(i) + " " +
+                          nanos[i] + "\n");
+            }
+        }
+        
+        /**
+         * Records that an operator created a new value for its result.
+         */
+        private void allocated(OperatorExpression operator) {
+            Integer index = operators.get(operator);
+            if (index != null) allocations[index]++;
+        }
+        
+        private void findOperators(Expression expression, int statement) {
+            if (expression instanceof OperatorExpression) {
+                OperatorExpression operator = (OperatorExpression)expression;
+                operators.put(operator, operatorList.size());
+                operatorList.add(operator);
+                operatorStatements.add(statement);
+                findOperators(operator.left, statement);
+                findOperators(operator.right, statement);
+            } else if (expression instanceof ArrayExpression) {
+                findOperators(((ArrayExpression)expression).index, statement);
+            }
+        }
+        
+        private String location(int statement) {
+            if (offsets[statement] == 0) return owners[statement];
+            return owners[statement] + "+" + offsets[statement];
+        }
+        
+        /**
+         * Prints the rows with the most time, sorted by time.
+         */
+        private static void table(PrintStream out, String title,
+                                  final List<String> names,
+                                  final List<long[]> rows, long total) {
+            Integer[] order = new Integer[rows.size()];
+            for (int i = 0; i < order.length; i++) order[i] = i;
+            Arrays.sort(order, new Comparator<Integer>() {
+                public int compare(Integer a, Integer b) {
+                    int c = Long.compare(rows.get(b)[1], rows.get(a)[1]);
+                    if (c != 0) return c;
+                    return names.get(a).compareTo(names.get(b));
+                }
+            });
+            
+            out.println(String.format("%-24s %14s %12s %7s", title, "Runs",
+                                      "Time (ms)", "Time"));
+            for (int i = 0; i < Math.min(order.length, REPORT_LIMIT); i++) {
+                long[] row = rows.get(order[i]);
+                if (row[1] == 0) break;
+                out.println(String.format("%-24s %14d %12.3f %6.1f%%",
+                    names.get(order[i]), row[0], row[1] / 1e6,
+                    (total == 0) ? 0.0 : 100.0 * row[1] / total));
+            }
+            out.println();
+        }
+        
+        private static final int REPORT_LIMIT = 20;
+        
+        private final long[] counts;
+        private final long[] nanos;
+        private final String[] owners;
+        private final int[] offsets;
+        
+        private final Map<OperatorExpression, Integer> operators =
+            new IdentityHashMap<OperatorExpression, Integer>();
+        private final List<OperatorExpression> operatorList =
+            new ArrayList<OperatorExpression>();
+        private final List<Integer> operatorStatements =
+            new ArrayList<Integer>();
+        private final long[] allocations;
+    }
+    
+    // Bytecode compiler -------------------------------------------------------
+    
+    // Walking the AST is easy to understand, but it isn't fast. Every step is
+    // a virtual call on some node object scattered around the heap, and the
+    // JVM can't inline much when the same call site sees every kind of node.
+    // Real interpreters usually compile the tree down to a flat array of
+    // instructions first, and then run those in a single loop. That's what
+    // this section and the next one do.
+    //
+    // This is a "register" machine rather than a stack machine: each
+    // instruction names the registers it reads and writes, so "x = y + z" is a
+    // single instruction instead of a push, push, add, pop dance. Variables
+    // live in the first registers (using the same slots they were resolved
+    // to), constants come next, and temporaries for intermediate results come
+    // after that. Like variables, each register has a numeric half (a double)
+    // and a value half (a Value), and the instructions that work on numbers
+    // never touch the value half.
+    
+    // The instructions. The comment after each one shows its operands, which
+    // follow it in the code array. "n" means the numeric register, "v" means
+    // the value register, and "pc" is an index into the code array.
+    private static final int OP_NMOVE  = 0;  // n[dest] = n[src]
+    private static final int OP_NADD   = 1;  // n[dest] = n[a] + n[b]
+    private static final int OP_NSUB   = 2;  // n[dest] = n[a] - n[b]
+    private static final int OP_NMUL   = 3;  // n[dest] = n[a] * n[b]
+    private static final int OP_NDIV   = 4;  // n[dest] = n[a] / n[b]
+    private static final int OP_NEQ    = 5;  // n[dest] = n[a] == n[b]
+    private static final int OP_NLT    = 6;  // n[dest] = n[a] < n[b]
+    private static final int OP_NGT    = 7;  // n[dest] = n[a] > n[b]
+    private static final int OP_VMOVE  = 8;  // v[dest] = v[src]
+    private static final int OP_VOP    = 9;  // v[dest] = v[a] <op> v[b], op
+    private static final int OP_BOX    = 10; // v[dest] = n[src]
+    private static final int OP_UNBOX  = 11; // n[dest] = v[src]
+    private static final int OP_PRINTN = 12; // print n[src]
+    private static final int OP_PRINTV = 13; // print v[src]
+    private static final int OP_INPUT  = 14; // v[dest] = input
+    private static final int OP_JUMP   = 15; // goto pc
+    private static final int OP_JUMPIF = 16; // if n[a] != 0 goto pc
+    private static final int OP_JEQ    = 17; // if n[a] == n[b] goto pc
+    private static final int OP_JLT    = 18; // if n[a] < n[b] goto pc
+    private static final int OP_JGT    = 19; // if n[a] > n[b] goto pc
+    private static final int OP_HALT   = 20; // stop
+    
+    /**
+     * A compiled program: the instruction array, plus the constants that need
+     * to be loaded into registers before it runs.
+     */
+    private static class Bytecode {
+        public Bytecode(int[] code, Value[] constants, int constantBase,
+                        int registers) {
+            this.code = code;
+            this.constants = constants;
+            this.constantBase = constantBase;
+            this.registers = registers;
+        }
+        
+        public final int[] code;
+        public final Value[] constants;
+        public final int constantBase;
+        public final int registers;
+    }
+    
+    /**
+     * This compiles a list of resolved and type-checked statements into
+     * bytecode. Each statement turns into a handful of instructions. Since a
+     * jump can go forward to a statement we haven't compiled yet, jumps are
+     * emitted with the target statement index and patched to the real code
+     * position once everything has been compiled.
+     */
+    private static class Compiler {
+        public Compiler(Program program) {
+            this.program = program;
+            this.statements = program.statements;
+        }
+        
+        public Bytecode compile() {
+            // Find all of the literals first, so that we know where the
+            // constant registers end and the temporaries can begin.
+            constantBase = program.slots.size();
+            for (Statement statement : statements) {
+                if (statement instanceof AssignStatement) {
+                    constants(((AssignStatement)statement).value);
+                } else if (statement instanceof PrintStatement) {
+                    constants(((PrintStatement)statement).expression);
+                } else if (statement instanceof IfThenStatement) {
+                    constants(((IfThenStatement)statement).condition);
+                }
+            }
+            tempBase = constantBase + constants.size();
+            maxTemp = tempBase;
+            
+            int[] statementPcs = new int[statements.size() + 1];
+            for (int i = 0; i < statements.size(); i++) {
+                statementPcs[i] = count;
+                nextTemp = tempBase;
+                statement(statements.get(i));
+            }
+            
+            // Jumping past the last statement ends the program.
+            statementPcs[statements.size()] = count;
+            emit(OP_HALT);
+            
+            for (int i = 0; i < jumpCount; i++) {
+                code[jumps[i]] = statementPcs[code[jumps[i]]];
+            }
+            
+            return new Bytecode(Arrays.copyOf(code, count),
+                constantValues.toArray(new Value[constantValues.size()]),
+                constantBase, maxTemp);
+        }
+        
+        private void statement(Statement statement) {
+            if (statement instanceof AssignStatement) {
+                AssignStatement assign = (AssignStatement)statement;
+                if (assign.numeric) {
+                    numberInto(assign.value, assign.slot);
+                } else {
+                    valueInto(assign.value, assign.slot);
+                }
+            } else if (statement instanceof PrintStatement) {
+                PrintStatement print = (PrintStatement)statement;
+                if (print.numeric) {
+                    emit(OP_PRINTN, number(print.expression));
+                } else {
+                    emit(OP_PRINTV, value(print.expression));
+                }
+            } else if (statement instanceof InputStatement) {
+                emit(OP_INPUT, ((InputStatement)statement).slot);
+            } else if (statement instanceof GotoStatement) {
+                emit(OP_JUMP);
+                jump(((GotoStatement)statement).target);
+            } else if (statement instanceof IfThenStatement) {
+                IfThenStatement ifThen = (IfThenStatement)statement;
+                condition(ifThen.condition);
+                jump(ifThen.target);
+            } else {
+                throw new UnsupportedOperationException();
+            }
+        }
+        
+        /**
+         * Emits the start of a conditional jump. Comparing two numbers is by
+         * far the most common condition, so that gets its own instructions
+         * instead of computing a 1 or 0 and then testing it.
+         */
+        private void condition(Expression condition) {
+            if (condition instanceof OperatorExpression) {
+                OperatorExpression operator = (OperatorExpression)condition;
+                int op = -1;
+                switch (operator.operator) {
+                case '=': op = OP_JEQ; break;
+                case '<': op = OP_JLT; break;
+                case '>': op = OP_JGT; break;
+                }
+                
+                if (op != -1 && operator.numeric) {
+                    int left = number(operator.left);
+                    int right = number(operator.right);
+                    emit(op, left, right);
+                    return;
+                }
+            }
+            
+            emit(OP_JUMPIF, number(condition));
+        }
+        
+        /**
+         * Compiles an expression for its numeric value and returns the
+         * register that holds it. Numeric variables and literals are already
+         * in registers, so they don't need any code at all.
+         */
+        private int number(Expression expression) {
+            if (expression instanceof NumberValue) {
+                return constant((Value)expression);
+            }
+            
+            if (expression instanceof VariableExpression) {
+                VariableExpression variable = (VariableExpression)expression;
+                if (variable.numeric) return variable.slot;
+            }
+            
+            int temp = temp();
+            numberInto(expression, temp);
+            return temp;
+        }
+        
+        /**
+         * Compiles an expression for its numeric value and stores it in the
+         * given register.
+         */
+        private void numberInto(Expression expression, int dest) {
+            // Arrays are only supported by the tree engine.
+            if (expression instanceof ArrayExpression) {
+                throw new UnsupportedOperationException();
+            }
+            
+            if (expression instanceof OperatorExpression) {
+                OperatorExpression operator = (OperatorExpression)expression;
+                if (operator.isUnboxed()) {
+                    int left = number(operator.left);
+                    int right = number(operator.right);
+                    emit(numberOp(operator.operator), dest, left, right);
+                } else {
+                    int temp = temp();
+                    valueInto(expression, temp);
+                    emit(OP_UNBOX, dest, temp);
+                }
+            } else if (expression instanceof NumberValue ||
+                       isNumber(expression, program.numericSlots)) {
+                emit(OP_NMOVE, dest, number(expression));
+            } else {
+                emit(OP_UNBOX, dest, value(expression));
+            }
+        }
+        
+        /**
+         * Compiles an expression for its boxed value and returns the register
+         * that holds it.
+         */
+        private int value(Expression expression) {
+            if (expression instanceof Value) {
+                return constant((Value)expression);
+            }
+            
+            if (expression instanceof VariableExpression) {
+                VariableExpression variable = (VariableExpression)expression;
+                if (!variable.numeric) return variable.slot;
+            }
+            
+            int temp = temp();
+            valueInto(expression, temp);
+            return temp;
+        }
+        
+        /**
+         * Compiles an expression for its boxed value and stores it in the
+         * given register.
+         */
+        private void valueInto(Expression expression, int dest) {
+            if (expression instanceof ArrayExpression) {
+                throw new UnsupportedOperationException();
+            }
+            
+            if (expression instanceof OperatorExpression) {
+                OperatorExpression operator = (OperatorExpression)expression;
+                if (operator.isUnboxed()) {
+                    // Do the math unboxed and only box the final result.
+                    int temp = temp();
+                    numberInto(expression, temp);
+                    emit(OP_BOX, dest, temp);
+                } else {
+                    int left = value(operator.left);
+                    int right = value(operator.right);
+                    emit(OP_VOP, dest, left, right, operator.operator);
+                }
+            } else if (expression instanceof VariableExpression &&
+                       ((VariableExpression)expression).numeric) {
+                emit(OP_BOX, dest, ((VariableExpression)expression).slot);
+            } else {
+                emit(OP_VMOVE, dest, value(expression));
+            }
+        }
+        
+        private int numberOp(char operator) {
+            switch (operator) {
+            case '+': return OP_NADD;
+            case '-': return OP_NSUB;
+            case '*': return OP_NMUL;
+            case '/': return OP_NDIV;
+            case '=': return OP_NEQ;
+            case '<': return OP_NLT;
+            case '>': return OP_NGT;
+            }
+            throw new Error("Unknown operator.");
+        }
+        
+        /**
+         * Assigns a constant register to every literal in the expression.
+         * Equal literals share a register.
+         */
+        private void constants(Expression expression) {
+            if (expression instanceof Value) {
+                Object key = constantKey((Value)expression);
+                if (!constants.containsKey(key)) {
+                    constants.put(key, constantBase + constants.size());
+                    constantValues.add((Value)expression);
+                }
+            } else if (expression instanceof OperatorExpression) {
+                OperatorExpression operator = (OperatorExpression)expression;
+                constants(operator.left);
+                constants(operator.right);
+            }
+        }
+        
+        private int constant(Value value) {
+            return constants.get(constantKey(value));
+        }
+        
+        private Object constantKey(Value value) {
+            if (value instanceof NumberValue) return value.toNumber();
+            return value.toString();
+        }
+        
+        private int temp() {
+            int temp = nextTemp++;
+            if (nextTemp > maxTemp) maxTemp = nextTemp;
+            return temp;
+        }
+        
+        /**
+         * Emits the target operand of a jump instruction. It holds the index
+         * of the target statement until compile() patches it.
+         */
+        private void jump(int target) {
+            if (jumpCount == jumps.length) {
+                jumps = Arrays.copyOf(jumps, jumps.length * 2);
+            }
+            jumps[jumpCount++] = count;
+            emit(target);
+        }
+        
+        private void emit(int... words) {
+            if (count + words.length > code.length) {
+                code = Arrays.copyOf(code, (count + words.length) * 2);
+            }
+            for (int word : words) code[count++] = word;
+        }
+        
+        private final Program program;
+        private final List<Statement> statements;
+        private final Map<Object, Integer> constants =
+            new HashMap<Object, Integer>();
+        private final List<Value> constantValues = new ArrayList<Value>();
+        private int[] code = new int[256];
+        private int count;
+        private int[] jumps = new int[16];
+        private int jumpCount;
+        private int constantBase;
+        private int tempBase;
+        private int nextTemp;
+        private int maxTemp;
+    }
+    
+    // Virtual machine ---------------------------------------------------------
+    
+    /**
+     * Runs a compiled program. This is the whole virtual machine: a loop that
+     * reads the next instruction and switches on it. The registers are the
+     * same arrays the tree-walking interpreter uses for variables, extended
+     * with room for the constants and temporaries.
+     * 
+     * @param bytecode The compiled program to run.
+     * @param context  The context to run it in.
+     */
+    private static void run(Bytecode bytecode, Context context) {
+        if (context.numbers.length < bytecode.registers) {
+            context.numbers = Arrays.copyOf(context.numbers,
+                                            bytecode.registers);
+            context.variables = Arrays.copyOf(context.variables,
+                                              bytecode.registers);
+        }
+        
+        double[] n = context.numbers;
+        Value[] v = context.variables;
+        
+        // Unset variables are zero. Filling them in up front means the
+        // instructions never have to check. They're filled in with UNSET, so
+        // the ones that are still unset can be put back afterwards.
+        boolean[] numericSlots = context.program.numericSlots;
+        for (int i = 0; i < bytecode.constantBase; i++) {
+            if (!numericSlots[i] && v[i] == null) v[i] = UNSET;
+        }
+        
+        try {
+            execute(bytecode, context);
+        } finally {
+            for (int i = 0; i < bytecode.constantBase; i++) {
+                v[i] = storedValue(v[i]);
+            }
+        }
+    }
+    
+    /**
+     * Stands in for an unset variable while compiled code runs. It works like
+     * ZERO, but it's a different object, so afterwards we can tell which
+     * variables were never set and leave them unset in the context.
+     */
+    private static final NumberValue UNSET = new NumberValue(0);
+    
+    /**
+     * Gets the value to store when one variable is assigned another. Copying
+     * an unset variable sets the new one to a real zero.
+     */
+    private static Value setValue(Value value) {
+        return (value == UNSET) ? ZERO : value;
+    }
+    
+    /**
+     * Gets the value to store back in the context for a variable after
+     * compiled code runs. Variables that were never set go back to null.
+     */
+    private static Value storedValue(Value value) {
+        return (value == UNSET) ? null : value;
+    }
+    
+    /**
+     * The main loop of the virtual machine.
+     */
+    private static void execute(Bytecode bytecode, Context context) {
+        double[] n = context.numbers;
+        Value[] v = context.variables;
+        
+        for (int i = 0; i < bytecode.constants.length; i++) {
+            Value constant = bytecode.constants[i];
+            int register = bytecode.constantBase + i;
+            v[register] = constant;
+            if (constant instanceof NumberValue) {
+                n[register] = constant.toNumber();
+            }
+        }
+        
+        int[] code = bytecode.code;
+        int pc = 0;
+        while (true) {
+            switch (code[pc]) {
+            case OP_NMOVE:
+                n[code[pc + 1]] = n[code[pc + 2]];
+                pc += 3;
+                break;
+            case OP_NADD:
+                n[code[pc + 1]] = n[code[pc + 2]] + n[code[pc + 3]];
+                pc += 4;
+                break;
+            case OP_NSUB:
+                n[code[pc + 1]] = n[code[pc + 2]] - n[code[pc + 3]];
+                pc += 4;
+                break;
+            case OP_NMUL:
+                n[code[pc + 1]] = n[code[pc + 2]] * n[code[pc + 3]];
+                pc += 4;
+                break;
+            case OP_NDIV:
+                n[code[pc + 1]] = n[code[pc + 2]] / n[code[pc + 3]];
+                pc += 4;
+                break;
+            case OP_NEQ:
+                n[code[pc + 1]] = (n[code[pc + 2]] == n[code[pc + 3]]) ? 1 : 0;
+                pc += 4;
+                break;
+            case OP_NLT:
+                n[code[pc + 1]] = (n[code[pc + 2]] < n[code[pc + 3]]) ? 1 : 0;
+                pc += 4;
+                break;
+            case OP_NGT:
+                n[code[pc + 1]] = (n[code[pc + 2]] > n[code[pc + 3]]) ? 1 : 0;
+                pc += 4;
+                break;
+            case OP_VMOVE:
+                v[code[pc + 1]] = setValue(v[code[pc + 2]]);
+                pc += 3;
+                break;
+            case OP_VOP:
+                v[code[pc + 1]] = operate(v[code[pc + 2]], (char)code[pc + 4],
+                                          v[code[pc + 3]]);
+                pc += 5;
+                break;
+            case OP_BOX:
+                v[code[pc + 1]] = NumberValue.valueOf(n[code[pc + 2]]);
+                pc += 3;
+                break;
+            case OP_UNBOX:
+                n[code[pc + 1]] = v[code[pc + 2]].toNumber();
+                pc += 3;
+                break;
+            case OP_PRINTN:
+                context.printNumber(n[code[pc + 1]]);
+                pc += 2;
+                break;
+            case OP_PRINTV:
+                context.print(v[code[pc + 1]]);
+                pc += 2;
+                break;
+            case OP_INPUT:
+                Value input = context.readInput();
+                if (input != null) v[code[pc + 1]] = input;
+                pc += 2;
+                break;
+            case OP_JUMP:
+                pc = code[pc + 1];
+                break;
+            case OP_JUMPIF:
+                pc = (n[code[pc + 1]] != 0) ? code[pc + 2] : pc + 3;
+                break;
+            case OP_JEQ:
+                pc = (n[code[pc + 1]] == n[code[pc + 2]]) ? code[pc + 3]
+                                                          : pc + 4;
+                break;
+            case OP_JLT:
+                pc = (n[code[pc + 1]] < n[code[pc + 2]]) ? code[pc + 3]
+                                                         : pc + 4;
+                break;
+            case OP_JGT:
+                pc = (n[code[pc + 1]] > n[code[pc + 2]]) ? code[pc + 3]
+                                                         : pc + 4;
+                break;
+            case OP_HALT:
+                return;
+            default:
+                throw new Error("Unknown instruction " + code[pc] + ".");
+            }
+        }
+    }
+    
+    // JVM compiler ------------------------------------------------------------
+    
+    // The bytecode VM is still an interpreter: it spends time deciding what
+    // each instruction does every time it runs it. The JVM already has a very
+    // good compiler in it, so the last step is to translate a Jasic program
+    // into a JVM class and let HotSpot compile that to machine code. Labels
+    // become jump targets in a single method, numeric variables become double
+    // locals, and everything else stays a Value local that is operated on by
+    // calling back into this class.
+    //
+    // There is no bytecode library here, so this writes the class file by
+    // hand. To keep that manageable, it targets an old class file version
+    // (Java 5). Newer versions require a "stack map" describing the type of
+    // every local at every jump target, which is a lot of bookkeeping. The
+    // generated class is loaded as a hidden class nested inside Jasic, which
+    // lets it reach the private interpreter state directly.
+    //
+    // HACK: HotSpot won't compile methods bigger than 8000 bytes of bytecode,
+    // so larger scripts (and any statement this compiler doesn't know how to
+    // translate) fall back to walking the AST. So does a class the JVM won't
+    // load, since a bug in a hand-written class file shouldn't stop a script
+    // that would otherwise run.
+    
+    /**
+     * Compiles a program to a JVM class and loads it. The class's method is
+     * returned with the constants already bound, so all that's left to pass
+     * it is the context to run in.
+     * 
+     * @param  program The program to compile.
+     * @return         A method handle that takes a Context and runs the
+     *                 program in it.
+     * @throws         UnsupportedOperationException if the program can't be
+     *                 compiled, or the JVM won't load the class.
+     */
+    private static MethodHandle compileClass(Program program) {
+        try {
+            JvmCompiler compiler = new JvmCompiler(program);
+            byte[] bytes = compiler.compile();
+            Value[] constants = compiler.constants.toArray(
+                new Value[compiler.constants.size()]);
+            
+            Lookup lookup = MethodHandles.lookup().defineHiddenClass(bytes,
+                true, Lookup.ClassOption.NESTMATE);
+            MethodHandle run = lookup.findStatic(lookup.lookupClass(), "run",
+                MethodType.methodType(void.class, Context.class,
+                                      Value[].class));
+            return MethodHandles.insertArguments(run, 1, (Object)constants);
+        } catch (LinkageError ex) {
+            // The JVM rejected the class, which means there's a bug in the
+            // compiler. Walking the AST still works, so do that instead.
+            throw new UnsupportedOperationException(
+                "Compiled script doesn't verify.", ex);
+        } catch (IllegalAccessException ex) {
+            throw new Error("Couldn't load compiled script.", ex);
+        } catch (NoSuchMethodException ex) {
+            throw new Error("Couldn't load compiled script.", ex);
+        }
+    }
+    
+    /**
+     * Translates a list of statements into the bytes of a class file with a
+     * single method:
+     * 
+     *     static void run(Context context, Value[] constants)
+     * 
+     * The method loads the variables from the context into locals, runs the
+     * program, then stores them back. If the program fails with an error,
+     * an exception handler stores them back before rethrowing it, so the
+     * context shows the variables as they were when it failed, the same as
+     * the other engines.
+     */
+    private static class JvmCompiler {
+        public JvmCompiler(Program program) {
+            this.statements = program.statements;
+            this.numericSlots = program.numericSlots;
+        }
+        
+        public byte[] compile() {
+            // Give each variable a local. Local 0 is the context and 1 is the
+            // constant array. Numbers take two local slots.
+            locals = new int[numericSlots.length];
+            int local = 2;
+            for (int i = 0; i < locals.length; i++) {
+                locals[i] = local;
+                local += numericSlots[i] ? 2 : 1;
+            }
+            
+            // Load the variables.
+            for (int i = 0; i < locals.length; i++) {
+                if (numericSlots[i]) {
+                    op(ALOAD_0, 1);
+                    field(GETFIELD, "numbers", "[D", 0);
+                    pushInt(i);
+                    op(DALOAD, 0);
+                    local(DSTORE, locals[i], -2);
+                } else {
+                    // Unset variables are zero, as UNSET.
+                    op(ALOAD_0, 1);
+                    field(GETFIELD, "variables", "[" + VALUE, 0);
+                    pushInt(i);
+                    op(AALOAD, -1);
+                    op(DUP, 1);
+                    int notNull = branch(IFNONNULL, -1);
+                    op(POP, -1);
+                    field(GETSTATIC, JASIC, "UNSET", NUMBER_VALUE, 1);
+                    patch(notNull, count);
+                    local(ASTORE, locals[i], -1);
+                }
+            }
+            
+            int bodyStart = count;
+            int[] statementPcs = new int[statements.size() + 1];
+            for (int i = 0; i < statements.size(); i++) {
+                statementPcs[i] = count;
+                statement(statements.get(i));
+            }
+            statementPcs[statements.size()] = count;
+            
+            // Store the variables back so the context can see them.
+            storeVariables();
+            op(RETURN, 0);
+            
+            // If anything in the body throws, store them back and rethrow.
+            // The handler starts with just the exception on the stack.
+            int handler = count;
+            int exception = local++;
+            stack = 1;
+            if (stack > maxStack) maxStack = stack;
+            local(ASTORE, exception, -1);
+            storeVariables();
+            local(ALOAD, exception, 1);
+            op(ATHROW, -1);
+            
+            if (count > MAX_CODE) {
+                throw new UnsupportedOperationException(
+                    "Script is too large to compile.");
+            }
+            
+            for (int i = 0; i < jumpCount; i++) {
+                int at = jumps[i];
+                patch(at, statementPcs[((code[at + 1] & 0xff) << 8) |
+                                        (code[at + 2] & 0xff)]);
+            }
+            
+            return classFile.toBytes("com/stuffwithstuff/JasicScript",
+                "run", "(" + CONTEXT + "[" + VALUE + ")V",
+                Arrays.copyOf(code, count), maxStack, local,
+                bodyStart, statementPcs[statements.size()], handler);
+        }
+        
+        /**
+         * Emits code to copy the variable locals back into the context.
+         */
+        private void storeVariables() {
+            for (int i = 0; i < locals.length; i++) {
+                op(ALOAD_0, 1);
+                if (numericSlots[i]) {
+                    field(GETFIELD, "numbers", "[D", 0);
+                    pushInt(i);
+                    local(DLOAD, locals[i], 2);
+                    op(DASTORE, -4);
+                } else {
+                    field(GETFIELD, "variables", "[" + VALUE, 0);
+                    pushInt(i);
+                    local(ALOAD, locals[i], 1);
+                    method(INVOKESTATIC, JASIC, "storedValue",
+                        "(" + VALUE + ")" + VALUE, 0);
+                    op(AASTORE, -3);
+                }
+            }
+        }
+        
+        private void statement(Statement statement) {
+            if (statement instanceof AssignStatement) {
+                AssignStatement assign = (AssignStatement)statement;
+                if (assign.numeric) {
+                    number(assign.value);
+                    local(DSTORE, locals[assign.slot], -2);
+                } else {
+                    value(assign.value);
+                    if (assign.value instanceof VariableExpression) {
+                        method(INVOKESTATIC, JASIC, "setValue",
+                            "(" + VALUE + ")" + VALUE, 0);
+                    }
+                    local(ASTORE, locals[assign.slot], -1);
+                }
+            } else if (statement instanceof PrintStatement) {
+                PrintStatement print = (PrintStatement)statement;
+                op(ALOAD_0, 1);
+                if (print.numeric) {
+                    number(print.expression);
+                    method(INVOKEVIRTUAL, CONTEXT_CLASS, "printNumber", "(D)V",
+                        -3);
+                } else {
+                    value(print.expression);
+                    method(INVOKEVIRTUAL, CONTEXT_CLASS, "print",
+                        "(" + VALUE + ")V", -2);
+                }
+            } else if (statement instanceof InputStatement) {
+                // Leave the variable alone if the read fails.
+                op(ALOAD_0, 1);
+                method(INVOKEVIRTUAL, CONTEXT_CLASS, "readInput",
+                    "()" + VALUE, 0);
+                op(DUP, 1);
+                int failed = branch(IFNULL, -1);
+                local(ASTORE, locals[((InputStatement)statement).slot], -1);
+                int done = branch(GOTO, 0);
+                stack++;
+                patch(failed, count);
+                op(POP, -1);
+                patch(done, count);
+            } else if (statement instanceof GotoStatement) {
+                jump(GOTO, ((GotoStatement)statement).target, 0);
+            } else if (statement instanceof IfThenStatement) {
+                IfThenStatement ifThen = (IfThenStatement)statement;
+                jump(condition(ifThen.condition), ifThen.target, -1);
+            } else {
+                throw new UnsupportedOperationException();
+            }
+        }
+        
+        /**
+         * Compiles a condition and returns the branch instruction that jumps
+         * when it's true. Comparisons of numbers compile straight to a JVM
+         * comparison instead of producing a 1 or 0 and testing that.
+         */
+        private int condition(Expression condition) {
+            if (condition instanceof OperatorExpression) {
+                OperatorExpression operator = (OperatorExpression)condition;
+                if (operator.numeric &&
+                    "=<>".indexOf(operator.operator) != -1) {
+                    number(operator.left);
+                    number(operator.right);
+                    return compare(operator.operator);
+                }
+            }
+            
+            number(condition);
+            op(DCONST_0, 2);
+            op(DCMPL, -3);
+            return IFNE;
+        }
+        
+        /**
+         * Emits the comparison of the two numbers on top of the stack, and
+         * returns the branch instruction that jumps when the comparison is
+         * true. Picking DCMPG or DCMPL makes NaN compare false either way,
+         * the same as in Java.
+         */
+        private int compare(char operator) {
+            switch (operator) {
+            case '=': op(DCMPL, -3); return IFEQ;
+            case '<': op(DCMPG, -3); return IFLT;
+            case '>': op(DCMPL, -3); return IFGT;
+            }
+            throw new Error("Unknown operator.");
+        }
+        
+        /**
+         * Compiles an expression that leaves its numeric value on the stack.
+         */
+        private void number(Expression expression) {
+            // Arrays are only supported by the tree engine. Everything that
+            // can't be compiled ends up here, so this is the one place that
+            // needs to check.
+            if (expression instanceof ArrayExpression) {
+                throw new UnsupportedOperationException();
+            }
+            
+            if (expression instanceof NumberValue) {
+                double value = ((NumberValue)expression).toNumber();
+                if (Double.doubleToRawLongBits(value) == 0) {
+                    op(DCONST_0, 2);
+                } else if (value == 1) {
+                    op(DCONST_1, 2);
+                } else {
+                    op(LDC2_W, 2);
+                    u2(classFile.doubleConstant(value));
+                }
+            } else if (expression instanceof VariableExpression &&
+                       ((VariableExpression)expression).numeric) {
+                int slot = ((VariableExpression)expression).slot;
+                local(DLOAD, locals[slot], 2);
+            } else if (expression instanceof OperatorExpression &&
+                       ((OperatorExpression)expression).isUnboxed()) {
+                OperatorExpression operator = (OperatorExpression)expression;
+                number(operator.left);
+                number(operator.right);
+                switch (operator.operator) {
+                case '+': op(DADD, -2); break;
+                case '-': op(DSUB, -2); break;
+                case '*': op(DMUL, -2); break;
+                case '/': op(DDIV, -2); break;
+                default:
+                    // Turn the comparison into 1 or 0.
+                    int isTrue = branch(compare(operator.operator), -1);
+                    op(DCONST_0, 2);
+                    int done = branch(GOTO, 0);
+                    stack -= 2;
+                    patch(isTrue, count);
+                    op(DCONST_1, 2);
+                    patch(done, count);
+                }
+            } else {
+                value(expression);
+                method(INVOKEINTERFACE, VALUE_CLASS, "toNumber", "()D", 1);
+            }
+        }
+        
+        /**
+         * Compiles an expression that leaves its boxed value on the stack.
+         */
+        private void value(Expression expression) {
+            if (expression instanceof Value) {
+                op(ALOAD_1, 1);
+                pushInt(constant((Value)expression));
+                op(AALOAD, -1);
+            } else if (expression instanceof VariableExpression &&
+                       !((VariableExpression)expression).numeric) {
+                int slot = ((VariableExpression)expression).slot;
+                local(ALOAD, locals[slot], 1);
+            } else if (expression instanceof OperatorExpression &&
+                       !((OperatorExpression)expression).isUnboxed()) {
+                OperatorExpression operator = (OperatorExpression)expression;
+                value(operator.left);
+                pushInt(operator.operator);
+                value(operator.right);
+                method(INVOKESTATIC, JASIC, "operate",
+                    "(" + VALUE + "C" + VALUE + ")" + VALUE, -2);
+            } else {
+                // Box the number.
+                number(expression);
+                method(INVOKESTATIC, NUMBER_VALUE_CLASS, "valueOf",
+                    "(D)" + NUMBER_VALUE, -1);
+            }
+        }
+        
+        private int constant(Value value) {
+            int index = constants.indexOf(value);
+            if (index == -1) {
+                index = constants.size();
+                constants.add(value);
+            }
+            return index;
+        }
+        
+        // The following functions emit JVM instructions. Each one is passed
+        // how much the instruction changes the size of the operand stack (in
+        // slots, where a double takes two) so that we can work out how big the
+        // stack needs to be.
+        
+        private void op(int opcode, int stackChange) {
+            u1(opcode);
+            stack += stackChange;
+            if (stack > maxStack) maxStack = stack;
+        }
+        
+        private void pushInt(int value) {
+            if (value >= -1 && value <= 5) {
+                op(ICONST_0 + value, 1);
+            } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                op(BIPUSH, 1);
+                u1(value);
+            } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+                op(SIPUSH, 1);
+                u2(value);
+            } else {
+                op(LDC_W, 1);
+                u2(classFile.intConstant(value));
+            }
+        }
+        
+        private void local(int opcode, int local, int stackChange) {
+            if (local > 255) {
+                u1(WIDE);
+                op(opcode, stackChange);
+                u2(local);
+            } else {
+                op(opcode, stackChange);
+                u1(local);
+            }
+        }
+        
+        private void field(int opcode, String name, String type,
+                           int stackChange) {
+            field(opcode, CONTEXT_CLASS, name, type, stackChange);
+        }
+        
+        private void field(int opcode, String owner, String name, String type,
+                           int stackChange) {
+            op(opcode, stackChange);
+            u2(classFile.memberRef(ClassFile.FIELD, owner, name, type));
+        }
+        
+        private void method(int opcode, String owner, String name, String type,
+                            int stackChange) {
+            if (opcode == INVOKEINTERFACE) {
+                op(opcode, stackChange);
+                u2(classFile.memberRef(ClassFile.INTERFACE_METHOD, owner, name,
+                    type));
+                
+                // The argument count is redundant, but required.
+                u1(1);
+                u1(0);
+            } else {
+                op(opcode, stackChange);
+                u2(classFile.memberRef(ClassFile.METHOD, owner, name, type));
+            }
+        }
+        
+        /**
+         * Emits a branch to a statement. The target is stored as the statement
+         * index until compile() patches it.
+         */
+        private void jump(int opcode, int target, int stackChange) {
+            if (jumpCount == jumps.length) {
+                jumps = Arrays.copyOf(jumps, jumps.length * 2);
+            }
+            jumps[jumpCount++] = count;
+            op(opcode, stackChange);
+            u2(target);
+        }
+        
+        /**
+         * Emits a branch whose target will be patched later, and returns its
+         * position.
+         */
+        private int branch(int opcode, int stackChange) {
+            int at = count;
+            op(opcode, stackChange);
+            u2(0);
+            return at;
+        }
+        
+        /**
+         * Points the branch instruction at the given position to a target.
+         */
+        private void patch(int at, int target) {
+            int offset = target - at;
+            if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE) {
+                throw new UnsupportedOperationException(
+                    "Jump is too far to compile.");
+            }
+            code[at + 1] = (byte)(offset >> 8);
+            code[at + 2] = (byte)offset;
+        }
+        
+        private void u1(int value) {
+            if (count == code.length) code = Arrays.copyOf(code, count * 2);
+            code[count++] = (byte)value;
+        }
+        
+        private void u2(int value) {
+            u1(value >> 8);
+            u1(value);
+        }
+        
+        private static final String JASIC = "com/stuffwithstuff/Jasic";
+        private static final String VALUE_CLASS = JASIC + "$Value";
+        private static final String VALUE = "L" + VALUE_CLASS + ";";
+        private static final String CONTEXT_CLASS = JASIC + "$Context";
+        private static final String CONTEXT = "L" + CONTEXT_CLASS + ";";
+        private static final String NUMBER_VALUE_CLASS = JASIC + "$NumberValue";
+        private static final String NUMBER_VALUE =
+            "L" + NUMBER_VALUE_CLASS + ";";
+        
+        private static final int MAX_CODE = 8000;
+        
+        private static final int ICONST_0 = 0x03;
+        private static final int DCONST_0 = 0x0e;
+        private static final int DCONST_1 = 0x0f;
+        private static final int BIPUSH = 0x10;
+        private static final int SIPUSH = 0x11;
+        private static final int LDC_W = 0x13;
+        private static final int LDC2_W = 0x14;
+        private static final int DLOAD = 0x18;
+        private static final int ALOAD = 0x19;
+        private static final int ALOAD_0 = 0x2a;
+        private static final int ALOAD_1 = 0x2b;
+        private static final int DALOAD = 0x31;
+        private static final int AALOAD = 0x32;
+        private static final int DSTORE = 0x39;
+        private static final int ASTORE = 0x3a;
+        private static final int DASTORE = 0x52;
+        private static final int AASTORE = 0x53;
+        private static final int POP = 0x57;
+        private static final int DUP = 0x59;
+        private static final int DADD = 0x63;
+        private static final int DSUB = 0x67;
+        private static final int DMUL = 0x6b;
+        private static final int DDIV = 0x6f;
+        private static final int DCMPL = 0x97;
+        private static final int DCMPG = 0x98;
+        private static final int IFEQ = 0x99;
+        private static final int IFNE = 0x9a;
+        private static final int IFLT = 0x9b;
+        private static final int IFGT = 0x9d;
+        private static final int GOTO = 0xa7;
+        private static final int RETURN = 0xb1;
+        private static final int GETSTATIC = 0xb2;
+        private static final int GETFIELD = 0xb4;
+        private static final int INVOKEVIRTUAL = 0xb6;
+        private static final int INVOKESTATIC = 0xb8;
+        private static final int INVOKEINTERFACE = 0xb9;
+        private static final int ATHROW = 0xbf;
+        private static final int WIDE = 0xc4;
+        private static final int IFNULL = 0xc6;
+        private static final int IFNONNULL = 0xc7;
+        
+        private final List<Statement> statements;
+        private final boolean[] numericSlots;
+        private final List<Value> constants = new ArrayList<Value>();
+        private final ClassFile classFile = new ClassFile();
+        private int[] locals;
+        private byte[] code = new byte[1024];
+        private int count;
+        private int stack;
+        private int maxStack;
+        private int[] jumps = new int[16];
+        private int jumpCount;
+    }
+    
+    /**
+     * Builds the constant pool for a class file and writes out the final
+     * bytes. This only supports what JvmCompiler needs: a class with no fields
+     * and a single static method.
+     */
+    private static class ClassFile {
+        public static final int UTF8 = 1;
+        public static final int INTEGER = 3;
+        public static final int DOUBLE = 6;
+        public static final int CLASS = 7;
+        public static final int FIELD = 9;
+        public static final int METHOD = 10;
+        public static final int INTERFACE_METHOD = 11;
+        public static final int NAME_AND_TYPE = 12;
+        
+        public int utf8(String text) {
+            Integer index = entries.get("U" + text);
+            if (index != null) return index;
+            
+            try {
+                pool.writeByte(UTF8);
+                pool.writeUTF(text);
+            } catch (IOException ex) {
+                throw new Error(ex);
+            }
+            return add("U" + text, 1);
+        }
+        
+        public int intConstant(int value) {
+            Integer index = entries.get("I" + value);
+            if (index != null) return index;
+            
+            try {
+                pool.writeByte(INTEGER);
+                pool.writeInt(value);
+            } catch (IOException ex) {
+                throw new Error(ex);
+            }
+            return add("I" + value, 1);
+        }
+        
+        public int doubleConstant(double value) {
+            long bits = Double.doubleToRawLongBits(value);
+            Integer index = entries.get("D" + bits);
+            if (index != null) return index;
+            
+            try {
+                pool.writeByte(DOUBLE);
+                pool.writeLong(bits);
+            } catch (IOException ex) {
+                throw new Error(ex);
+            }
+            
+            // Doubles take up two entries in the constant pool. Hysterical
+            // raisins.
+            return add("D" + bits, 2);
+        }
+        
+        public int classRef(String name) {
+            return ref(CLASS, utf8(name));
+        }
+        
+        public int memberRef(int kind, String owner, String name,
+                             String type) {
+            int nameAndType = ref(NAME_AND_TYPE, utf8(name), utf8(type));
+            return ref(kind, classRef(owner), nameAndType);
+        }
+        
+        /**
+         * Writes out the full class file. The method has a single exception
+         * handler that catches anything thrown in the given range of code.
+         */
+        public byte[] toBytes(String className, String methodName,
+                              String methodType, byte[] code, int maxStack,
+                              int maxLocals, int tryStart, int tryEnd,
+                              int handler) {
+            int thisClass = classRef(className);
+            int superClass = classRef("java/lang/Object");
+            int name = utf8(methodName);
+            int type = utf8(methodType);
+            int codeName = utf8("Code");
+            
+            try {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                DataOutputStream out = new DataOutputStream(bytes);
+                out.writeInt(0xcafebabe);
+                out.writeShort(0);      // Minor version.
+                out.writeShort(49);     // Major version: Java 5.
+                out.writeShort(next);
+                poolBytes.writeTo(out);
+                out.writeShort(0x0031); // Public, final, super.
+                out.writeShort(thisClass);
+                out.writeShort(superClass);
+                out.writeShort(0);      // Interfaces.
+                out.writeShort(0);      // Fields.
+                
+                out.writeShort(1);      // Methods.
+                out.writeShort(0x0009); // Public, static.
+                out.writeShort(name);
+                out.writeShort(type);
+                out.writeShort(1);      // Attributes.
+                out.writeShort(codeName);
+                out.writeInt(((tryStart < tryEnd) ? 20 : 12) + code.length);
+                out.writeShort(maxStack);
+                out.writeShort(maxLocals);
+                out.writeInt(code.length);
+                out.write(code);
+                if (tryStart < tryEnd) {
+                    out.writeShort(1);  // Exception handlers.
+                    out.writeShort(tryStart);
+                    out.writeShort(tryEnd);
+                    out.writeShort(handler);
+                    out.writeShort(0);  // Catch anything.
+                } else {
+                    // The range can't be empty, but nothing can throw then.
+                    out.writeShort(0);
+                }
+                out.writeShort(0);      // Code attributes.
+                
+                out.writeShort(0);      // Class attributes.
+                return bytes.toByteArray();
+            } catch (IOException ex) {
+                throw new Error(ex);
+            }
+        }
+        
+        private int ref(int tag, int index) {
+            return ref(tag, index, -1);
+        }
+        
+        private int ref(int tag, int first, int second) {
+            String key = tag + ":" + first + ":" + second;
+            Integer index = entries.get(key);
+            if (index != null) return index;
+            
+            try {
+                pool.writeByte(tag);
+                pool.writeShort(first);
+                if (second != -1) pool.writeShort(second);
+            } catch (IOException ex) {
+                throw new Error(ex);
+            }
+            return add(key, 1);
+        }
+        
+        private int add(String key, int size) {
+            int index = next;
+            entries.put(key, index);
+            next += size;
+            return index;
+        }
+        
+        private final Map<String, Integer> entries =
+            new HashMap<String, Integer>();
+        private final ByteArrayOutputStream poolBytes =
+            new ByteArrayOutputStream();
+        private final DataOutputStream pool = new DataOutputStream(poolBytes);
+        
+        // Constant pool indexes start at 1.
+        private int next = 1;
+    }
+    
+    // Program cache -----------------------------------------------------------
+    
+    // Tokenizing and parsing a script takes the same time every run, even
+    // though the result is the same as long as the script hasn't changed. When
+    // caching is turned on, the parsed statements and labels are saved in a
+    // compact binary form next to the script ("foo.jas" gets "foo.jasc"),
+    // along with a hash of the script's contents. The next run hashes the
+    // script, and if the hash matches, reads the statements straight from the
+    // cache instead of parsing.
+    //
+    // Only the parsed form is cached. Linking, resolving, and type inference
+    // are cheap, so they're redone when the Program is built.
+    //
+    // The file ends with a hash of everything before it, so a cache that's
+    // been damaged on disk is thrown away instead of running as some other
+    // script. If the statements still don't make a valid program, the cache
+    // is thrown away too, and the script is parsed as if there wasn't one.
+    
+    /**
+     * Loads a script from a file, using the cached parse if there is a fresh
+     * one.
+     * 
+     * @param  path     Path to the script.
+     * @param  charset  The encoding of the script.
+     * @param  useCache Whether to read and write the cache.
+     * @return          The parsed program.
+     * @throws          IOException
+     */
+    private static Program loadProgram(String path, Charset charset,
+            boolean useCache) throws IOException {
+        byte[] hash = null;
+        Path cachePath = Paths.get(path + "c");
+        if (useCache) {
+            hash = hashFile(path, charset);
+            Map<String, Integer> labels = new HashMap<String, Integer>();
+            List<Statement> statements = readCache(cachePath, hash, labels);
+            if (statements != null) {
+                try {
+                    return new Program(statements, labels);
+                } catch (Error ex) {
+                    // The cache is corrupt, so parse the script instead.
+                } catch (RuntimeException ex) {
+                    // Likewise.
+                }
+            }
+        }
+        
+        Map<String, Integer> labels = new HashMap<String, Integer>();
+        List<Statement> statements;
+        Reader reader = openFile(path, charset);
+        try {
+            Parser parser = new Parser(new Tokens(new Lexer(reader)));
+            statements = parser.parse(labels);
+        } finally {
+            reader.close();
+        }
+        
+        if (useCache) writeCache(cachePath, hash, statements, labels);
+        return new Program(statements, labels);
+    }
+    
+    /**
+     * Creates a new SHA-256 digest, which every JVM has.
+     */
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new Error(ex);
+        }
+    }
+    
+    /**
+     * Computes a SHA-256 hash of the script and the charset used to read it.
+     * The cache format version is mixed in too, so that changing the format
+     * invalidates old caches.
+     */
+    private static byte[] hashFile(String path, Charset charset)
+            throws IOException {
+        MessageDigest digest = sha256();
+        digest.update((byte)CACHE_VERSION);
+        digest.update(charset.name().getBytes(StandardCharsets.UTF_8));
+        
+        FileChannel channel = FileChannel.open(Paths.get(path),
+            StandardOpenOption.READ);
+        try {
+            long size = channel.size();
+            for (long position = 0; position < size;
+                 position += MappedReader.WINDOW_SIZE) {
+                digest.update(channel.map(FileChannel.MapMode.READ_ONLY,
+                    position, Math.min(size - position,
+                                       MappedReader.WINDOW_SIZE)));
+            }
+        } finally {
+            channel.close();
+        }
+        
+        return digest.digest();
+    }
+    
+    /**
+     * Reads the statements from a cache file, if it exists, matches the hash,
+     * and isn't damaged.
+     * 
+     * @return The statements or null if the cache can't be used.
+     */
+    private static List<Statement> readCache(Path path, byte[] hash,
+                                             Map<String, Integer> labels) {
+        if (!Files.exists(path)) return null;
+        
+        try {
+            DigestInputStream digestIn = new DigestInputStream(
+                new BufferedInputStream(Files.newInputStream(path)),
+                sha256());
+            DataInputStream in = new DataInputStream(digestIn);
+            try {
+                if (in.readInt() != CACHE_MAGIC) return null;
+                if (in.readByte() != CACHE_VERSION) return null;
+                
+                byte[] cachedHash = new byte[hash.length];
+                in.readFully(cachedHash);
+                if (!Arrays.equals(hash, cachedHash)) return null;
+                
+                Map<String, Integer> cachedLabels =
+                    new HashMap<String, Integer>();
+                int labelCount = in.readInt();
+                for (int i = 0; i < labelCount; i++) {
+                    String name = readString(in);
+                    cachedLabels.put(name, in.readInt());
+                }
+                
+                // Don't size the list from the count, in case it's corrupt.
+                int statementCount = in.readInt();
+                List<Statement> statements = new ArrayList<Statement>();
+                for (int i = 0; i < statementCount; i++) {
+                    statements.add(readStatement(in));
+                }
+                
+                // A label can point just past the last statement, at the end
+                // of the script, but no further.
+                for (int index : cachedLabels.values()) {
+                    if (index < 0 || index > statements.size()) return null;
+                }
+                
+                // Make sure what we read is what was written.
+                byte[] expected = digestIn.getMessageDigest().digest();
+                digestIn.on(false);
+                byte[] checksum = new byte[expected.length];
+                in.readFully(checksum);
+                if (!Arrays.equals(expected, checksum)) return null;
+                if (in.read() != -1) return null;
+                
+                labels.putAll(cachedLabels);
+                return statements;
+            } finally {
+                in.close();
+            }
+        } catch (IOException ex) {
+            // A cache we can't read is the same as no cache.
+            return null;
+        } catch (RuntimeException ex) {
+            // So is one that's corrupt in some way we didn't check for.
+            return null;
+        }
+    }
+    
+    /**
+     * Writes the statements to a cache file. The file is written under a
+     * temporary name and then moved into place, so another run reading the
+     * cache at the same time never sees half of it. Failing to write the cache
+     * isn't an error, it just means the next run has to parse.
+     */
+    private static void writeCache(Path path, byte[] hash,
+                                   List<Statement> statements,
+                                   Map<String, Integer> labels) {
+        Path temp = null;
+        try {
+            Path directory = path.toAbsolutePath().getParent();
+            temp = Files.createTempFile(directory, ".jasic", ".tmp");
+            
+            DigestOutputStream digestOut = new DigestOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(temp)),
+                sha256());
+            DataOutputStream out = new DataOutputStream(digestOut);
+            try {
+                out.writeInt(CACHE_MAGIC);
+                out.writeByte(CACHE_VERSION);
+                out.write(hash);
+                
+                out.writeInt(labels.size());
+                for (Map.Entry<String, Integer> label : labels.entrySet()) {
+                    writeString(out, label.getKey());
+                    out.writeInt(label.getValue());
+                }
+                
+                out.writeInt(statements.size());
+                for (Statement statement : statements) {
+                    writeStatement(out, statement);
+                }
+                
+                digestOut.on(false);
+                out.write(digestOut.getMessageDigest().digest());
+            } finally {
+                out.close();
+            }
+            
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+            temp = null;
+        } catch (IOException ex) {
+            // Ignore it.
+        } finally {
+            if (temp != null) {
+                try {
+                    Files.deleteIfExists(temp);
+                } catch (IOException ex) {
+                    // Ignore it.
+                }
+            }
+        }
+    }
+    
+    // Each node is written as a tag byte identifying its type, followed by its
+    // fields.
+    
+    private static final int CACHE_MAGIC = 0x4a415343; // "JASC".
+    private static final int CACHE_VERSION = 4;
+    
+    private static final int TAG_ASSIGN = 0;
+    private static final int TAG_PRINT = 1;
+    private static final int TAG_INPUT = 2;
+    private static final int TAG_GOTO = 3;
+    private static final int TAG_IF_THEN = 4;
+    private static final int TAG_DIM = 5;
+    private static final int TAG_ARRAY_ASSIGN = 6;
+    private static final int TAG_FOR = 7;
+    private static final int TAG_NEXT = 8;
+    
+    private static final int TAG_NUMBER = 0;
+    private static final int TAG_STRING = 1;
+    private static final int TAG_VARIABLE = 2;
+    private static final int TAG_OPERATOR = 3;
+    private static final int TAG_ARRAY = 4;
+    
+    private static void writeStatement(DataOutputStream out,
+            Statement statement) throws IOException {
+        if (statement instanceof AssignStatement) {
+            AssignStatement assign = (AssignStatement)statement;
+            out.writeByte(TAG_ASSIGN);
+            writeString(out, assign.name);
+            writeExpression(out, assign.value);
+        } else if (statement instanceof PrintStatement) {
+            out.writeByte(TAG_PRINT);
+            writeExpression(out, ((PrintStatement)statement).expression);
+        } else if (statement instanceof InputStatement) {
+            out.writeByte(TAG_INPUT);
+            writeString(out, ((InputStatement)statement).name);
+        } else if (statement instanceof GotoStatement) {
+            out.writeByte(TAG_GOTO);
+            writeString(out, ((GotoStatement)statement).label);
+        } else if (statement instanceof IfThenStatement) {
+            IfThenStatement ifThen = (IfThenStatement)statement;
+            out.writeByte(TAG_IF_THEN);
+            writeExpression(out, ifThen.condition);
+            writeString(out, ifThen.label);
+        } else if (statement instanceof DimStatement) {
+            DimStatement dim = (DimStatement)statement;
+            out.writeByte(TAG_DIM);
+            writeString(out, dim.name);
+            writeExpression(out, dim.size);
+        } else if (statement instanceof ArrayAssignStatement) {
+            ArrayAssignStatement assign = (ArrayAssignStatement)statement;
+            out.writeByte(TAG_ARRAY_ASSIGN);
+            writeString(out, assign.name);
+            writeExpression(out, assign.index);
+            writeExpression(out, assign.value);
+        } else if (statement instanceof ForStatement) {
+            ForStatement loop = (ForStatement)statement;
+            out.writeByte(TAG_FOR);
+            writeString(out, loop.name);
+            writeExpression(out, loop.start);
+            writeExpression(out, loop.limit);
+            writeExpression(out, loop.step);
+        } else if (statement instanceof NextStatement) {
+            // A bare "next" is written with an empty name.
+            String name = ((NextStatement)statement).name;
+            out.writeByte(TAG_NEXT);
+            writeString(out, (name != null) ? name : "");
+        } else {
+            throw new IOException("Can't cache " +
+                statement.getClass().getSimpleName() + ".");
+        }
+    }
+    
+    private static Statement readStatement(DataInputStream in)
+            throws IOException {
+        switch (in.readByte()) {
+        case TAG_ASSIGN:
+            String name = readString(in);
+            return new AssignStatement(name, readExpression(in));
+        case TAG_PRINT:
+            return new PrintStatement(readExpression(in));
+        case TAG_INPUT:
+            return new InputStatement(readString(in));
+        case TAG_GOTO:
+            return new GotoStatement(readString(in));
+        case TAG_IF_THEN:
+            Expression condition = readExpression(in);
+            return new IfThenStatement(condition, readString(in));
+        case TAG_DIM:
+            name = readString(in);
+            return new DimStatement(name, readExpression(in));
+        case TAG_ARRAY_ASSIGN:
+            name = readString(in);
+            Expression index = readExpression(in);
+            return new ArrayAssignStatement(name, index, readExpression(in));
+        case TAG_FOR:
+            name = readString(in);
+            Expression start = readExpression(in);
+            Expression limit = readExpression(in);
+            return new ForStatement(name, start, limit, readExpression(in));
+        case TAG_NEXT:
+            name = readString(in);
+            return new NextStatement(name.isEmpty() ? null : name);
+        }
+        throw new IOException("Corrupt cache.");
+    }
+    
+    private static void writeExpression(DataOutputStream out,
+            Expression expression) throws IOException {
+        if (expression instanceof NumberValue) {
+            out.writeByte(TAG_NUMBER);
+            out.writeDouble(((NumberValue)expression).toNumber());
+        } else if (expression instanceof StringValue) {
+            out.writeByte(TAG_STRING);
+            writeString(out, expression.toString());
+        } else if (expression instanceof VariableExpression) {
+            out.writeByte(TAG_VARIABLE);
+            writeString(out, ((VariableExpression)expression).name);
+        } else if (expression instanceof OperatorExpression) {
+            OperatorExpression operator = (OperatorExpression)expression;
+            out.writeByte(TAG_OPERATOR);
+            out.writeChar(operator.operator);
+            writeExpression(out, operator.left);
+            writeExpression(out, operator.right);
+        } else if (expression instanceof ArrayExpression) {
+            ArrayExpression array = (ArrayExpression)expression;
+            out.writeByte(TAG_ARRAY);
+            writeString(out, array.name);
+            writeExpression(out, array.index);
+        } else {
+            throw new IOException("Can't cache " +
+                expression.getClass().getSimpleName() + ".");
+        }
+    }
+    
+    private static Expression readExpression(DataInputStream in)
+            throws IOException {
+        switch (in.readByte()) {
+        case TAG_NUMBER:
+            return NumberValue.valueOf(in.readDouble());
+        case TAG_STRING:
+            return StringValue.valueOf(readString(in));
+        case TAG_VARIABLE:
+            return new VariableExpression(readString(in));
+        case TAG_OPERATOR:
+            char operator = in.readChar();
+            if ("=+-*/<>".indexOf(operator) == -1) break;
+            Expression left = readExpression(in);
+            return new OperatorExpression(left, operator, readExpression(in));
+        case TAG_ARRAY:
+            String name = readString(in);
+            return new ArrayExpression(name, readExpression(in));
+        }
+        throw new IOException("Corrupt cache.");
+    }
+    
+    /**
+     * Writes a string as its length followed by its UTF-8 bytes. Unlike
+     * writeUTF(), this handles strings longer than 64K.
+     */
+    private static void writeString(DataOutputStream out, String text)
+            throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+    
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) throw new IOException("Bad string length.");
+        
+        // Don't trust the length enough to allocate it all up front. If the
+        // file is corrupt, reading a chunk at a time runs out of file long
+        // before it could run out of memory.
+        byte[] bytes;
+        if (length <= STRING_CHUNK) {
+            bytes = new byte[length];
+            in.readFully(bytes);
+        } else {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            byte[] chunk = new byte[STRING_CHUNK];
+            for (int left = length; left > 0; left -= STRING_CHUNK) {
+                int size = Math.min(left, STRING_CHUNK);
+                in.readFully(chunk, 0, size);
+                buffer.write(chunk, 0, size);
+            }
+            bytes = buffer.toByteArray();
+        }
+        
+        // Names are interned by the lexer, so do the same here.
+        return new String(bytes, StandardCharsets.UTF_8).intern();
+    }
+    
+    private static final int STRING_CHUNK = 8192;
+    
+    // Snapshots ---------------------------------------------------------------
+    
+    // A long-running script can be stopped and picked up again later, even in
+    // another JVM. All the state of a run is in its Context: the index of the
+    // current statement, and the variables and arrays. A snapshot writes
+    // those out in a compact binary form, along with a hash of the program so
+    // that it can't be resumed by a different script. Variables are saved by
+    // name, not slot, and numbers are saved as raw doubles, so nothing is lost
+    // in the round trip.
+    //
+    // Statements run one at a time and don't keep anything on the Java stack,
+    // so any point between two statements is a safe place to stop. Fused
+    // statements leave the statements they cover where they are, so it's safe
+    // to resume at any index.
+    
+    /**
+     * Hashes a program's statements and labels, by writing them out in the
+     * cache format.
+     */
+    private static byte[] hashProgram(Program program) {
+        MessageDigest digest = sha256();
+        try {
+            DataOutputStream out = new DataOutputStream(
+                new DigestOutputStream(OutputStream.nullOutputStream(),
+                                       digest));
+            out.writeByte(SNAPSHOT_VERSION);
+            out.writeByte(CACHE_VERSION);
+            
+            // Sort the labels so the hash doesn't depend on map order.
+            Map<String, Integer> labels =
+                new TreeMap<String, Integer>(program.labels);
+            out.writeInt(labels.size());
+            for (Map.Entry<String, Integer> label : labels.entrySet()) {
+                writeString(out, label.getKey());
+                out.writeInt(label.getValue());
+            }
+            
+            out.writeInt(program.statements.size());
+            for (Statement statement : program.statements) {
+                writeStatement(out, statement);
+            }
+            out.close();
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        
+        return digest.digest();
+    }
+    
+    /**
+     * Writes a snapshot of a context. Like the cache, it's written under a
+     * temporary name and moved into place, so a crash while saving never
+     * leaves a half-written snapshot behind.
+     */
+    private static void writeSnapshot(Path path, Context context)
+            throws IOException {
+        Program program = context.program;
+        Path directory = path.toAbsolutePath().getParent();
+        Path temp = Files.createTempFile(directory, ".jasic", ".tmp");
+        try {
+            DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(temp)));
+            try {
+                out.writeInt(SNAPSHOT_MAGIC);
+                out.writeByte(SNAPSHOT_VERSION);
+                out.write(program.fingerprint());
+                out.writeInt(context.currentStatement);
+                
+                out.writeInt(program.slots.size());
+                for (Map.Entry<String, Integer> entry :
+                     program.slots.entrySet()) {
+                    int slot = entry.getValue();
+                    writeString(out, entry.getKey());
+                    
+                    if (program.numericSlots[slot]) {
+                        out.writeByte(VALUE_NUMBER);
+                        out.writeDouble(context.numbers[slot]);
+                    } else {
+                        writeValue(out, context.variables[slot]);
+                    }
+                    
+                    writeArray(out, context.arrays[slot]);
+                }
+            } finally {
+                out.close();
+            }
+            
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+            temp = null;
+        } finally {
+            if (temp != null) Files.deleteIfExists(temp);
+        }
+    }
+    
+    /**
+     * Reads a snapshot into a new context for the same program.
+     */
+    private static void readSnapshot(Path path, Context context)
+            throws IOException {
+        Program program = context.program;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+            Files.newInputStream(path)));
+        try {
+            if (in.readInt() != SNAPSHOT_MAGIC ||
+                in.readByte() != SNAPSHOT_VERSION) {
+                throw new IOException("Not a snapshot.");
+            }
+            
+            byte[] fingerprint = new byte[program.fingerprint().length];
+            in.readFully(fingerprint);
+            if (!Arrays.equals(fingerprint, program.fingerprint())) {
+                throw new IOException("Snapshot is of a different program.");
+            }
+            
+            int current = in.readInt();
+            if (current < 0 || current > program.statements.size()) {
+                throw new IOException("Corrupt snapshot.");
+            }
+            context.currentStatement = current;
+            
+            int slotCount = in.readInt();
+            for (int i = 0; i < slotCount; i++) {
+                Integer slot = program.slots.get(readString(in));
+                if (slot == null) throw new IOException("Corrupt snapshot.");
+                
+                Value value = readValue(in);
+                if (program.numericSlots[slot]) {
+                    context.numbers[slot] =
+                        (value != null) ? value.toNumber() : 0;
+                } else {
+                    context.variables[slot] = value;
+                }
+                
+                context.arrays[slot] = readArray(in);
+            }
+        } finally {
+            in.close();
+        }
+    }
+    
+    private static void writeValue(DataOutputStream out, Value value)
+            throws IOException {
+        if (value == null) {
+            out.writeByte(VALUE_UNSET);
+        } else if (value instanceof NumberValue) {
+            out.writeByte(VALUE_NUMBER);
+            out.writeDouble(value.toNumber());
+        } else {
+            out.writeByte(VALUE_STRING);
+            writeString(out, value.toString());
+        }
+    }
+    
+    private static Value readValue(DataInputStream in) throws IOException {
+        switch (in.readByte()) {
+        case VALUE_UNSET: return null;
+        case VALUE_NUMBER: return NumberValue.valueOf(in.readDouble());
+        case VALUE_STRING: return StringValue.valueOf(readString(in));
+        }
+        throw new IOException("Corrupt snapshot.");
+    }
+    
+    /**
+     * Writes an array, or -1 if it hasn't been created. The strings are only
+     * written if there are any.
+     */
+    private static void writeArray(DataOutputStream out, ArrayData array)
+            throws IOException {
+        if (array == null) {
+            out.writeInt(-1);
+            return;
+        }
+        
+        out.writeInt(array.numbers.length);
+        for (double number : array.numbers) out.writeDouble(number);
+        
+        out.writeBoolean(array.strings != null);
+        if (array.strings == null) return;
+        for (String string : array.strings) {
+            out.writeBoolean(string != null);
+            if (string != null) writeString(out, string);
+        }
+    }
+    
+    private static ArrayData readArray(DataInputStream in)
+            throws IOException {
+        int length = in.readInt();
+        if (length == -1) return null;
+        
+        ArrayData array = new ArrayData(length);
+        for (int i = 0; i < length; i++) array.numbers[i] = in.readDouble();
+        
+        if (!in.readBoolean()) return array;
+        array.strings = new String[length];
+        for (int i = 0; i < length; i++) {
+            if (in.readBoolean()) array.strings[i] = readString(in);
+        }
+        return array;
+    }
+    
+    private static final int SNAPSHOT_MAGIC = 0x4a415353; // "JASS".
+    private static final int SNAPSHOT_VERSION = 1;
+    
+    private static final int VALUE_UNSET = 0;
+    private static final int VALUE_NUMBER = 1;
+    private static final int VALUE_STRING = 2;
+    
+    // Utility stuff -----------------------------------------------------------
+    
+    /**
+     * Opens the file at the given path for reading. Rather than copying the
+     * file through a chain of stream buffers, this maps it into memory and
+     * decodes the bytes straight into the lexer's buffer.
+     * 
+     * @param  path    Path to the text file to read.
+     * @param  charset The encoding of the file.
+     * @return         A reader for the contents of the file.
+     * @throws         IOException
+     */
+    private static Reader openFile(String path, Charset charset)
+            throws IOException {
+        return new MappedReader(FileChannel.open(Paths.get(path),
+            StandardOpenOption.READ), charset);
+    }
+    
+    /**
+     * A Reader that decodes characters from a memory-mapped file. Large files
+     * are mapped a window at a time, since a single mapping can't be bigger
+     * than 2GB. Malformed input is reported as an error instead of being
+     * silently replaced.
+     */
+    private static class MappedReader extends Reader {
+        public MappedReader(FileChannel channel, Charset charset)
+                throws IOException {
+            this.channel = channel;
+            this.size = channel.size();
+            this.decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPORT)
+                .onUnmappableCharacter(CodingErrorAction.REPORT);
+            map(0);
+        }
+        
+        @Override public int read(char[] buffer, int offset, int length)
+                throws IOException {
+            if (length == 0) return 0;
+            if (flushed) return -1;
+            
+            CharBuffer out = CharBuffer.wrap(buffer, offset, length);
+            while (out.position() == offset) {
+                boolean last = mapped + bytes.limit() == size;
+                CoderResult result = decoder.decode(bytes, out, last);
+                if (result.isError()) result.throwException();
+                
+                if (bytes.hasRemaining() && result.isOverflow()) break;
+                
+                if (!last) {
+                    // Move the window past what we've decoded. Any bytes of
+                    // a character split across the end of the window are
+                    // mapped again at the start of the next one.
+                    map(mapped + bytes.position());
+                } else if (!flushed) {
+                    result = decoder.flush(out);
+                    if (result.isError()) result.throwException();
+                    if (result.isOverflow()) break;
+                    flushed = true;
+                    break;
+                }
+            }
+            
+            int read = out.position() - offset;
+            return (read == 0) ? -1 : read;
+        }
+        
+        @Override public void close() throws IOException {
+            channel.close();
+        }
+        
+        private void map(long position) throws IOException {
+            mapped = position;
+            long length = Math.min(size - position, WINDOW_SIZE);
+            bytes = channel.map(FileChannel.MapMode.READ_ONLY, position,
+                length);
+        }
+        
+        private static final long WINDOW_SIZE = 1 << 30;
+        
+        private final FileChannel channel;
+        private final long size;
+        private final CharsetDecoder decoder;
+        private ByteBuffer bytes;
+        private long mapped;
+        private boolean flushed;
     }
 }